@@ -0,0 +1,137 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+
+// spawned tasks: `spawn f@x` makes the call on a virtual thread and gives
+// a task, and `await h` waits for the task and gives what the call
+// returned. The task runs in a Context of its own (see Context.fork),
+// which starts out with the bindings the spawner had when it spawned, so
+// that the bindings either makes later are its own. Tasks read from the
+// spawner's input, which hands out one line at a time, so tasks that wait
+// for input overlap their waits.
+//
+// What a task prints is kept until it is awaited, and then printed by
+// the awaiting context, as if the call had been made there; a task that
+// is never awaited prints nothing. A task that fails fails the statement
+// that awaits it, with the task's error.
+//
+// `cancel h;` asks a task to stop; it does so at its next call or turn
+// of a loop, with an error that its await reports. A task that has
+// finished is not changed by it, and a task blocked in read stops once
+// the read returns.
+//
+// A task runs the spawner's trees while the spawner goes on, so neither
+// changes them until every task the spawner (or its tasks) started has
+// ended; see Context.mayRewrite().
+//
+// The engine bounds how many tasks run at once (maxTasks). A spawn past
+// the bound makes the call itself before it goes on, still in a context
+// of its own, so a recursive spawn cannot start threads without end.
+// Tasks run on virtual threads, whose stacks are the JVM's default size,
+// so calls in a task nest less deeply than on the interpreter's thread.
+public final class Async {
+    // the buffers of a task's output
+    private static final int BUFFER = 1 << 10;
+
+    private Async() { }
+
+    // a spawned call and, once it has finished, its result.
+    public static final class Task {
+        // null when what was spawned was not a lambda; the task is done
+        private final Context cx;
+        private final Main.Lambda lambda;
+        private final Main.Value arg;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        // null when the call ran on the spawner's thread
+        private Thread thread;
+        // written by the task's thread before it ends; join() publishes them
+        private Main.Value result = Main.Value.NONE;
+        private boolean failed = false;
+        // whether an await has printed the task's output yet
+        private boolean printed = false;
+
+        private Task(Context spawner, Main.Lambda lambda, Main.Value arg) {
+            // counted out at the end of run(); until then, the spawner's
+            // trees stay as they are
+            if (lambda != null)
+                spawner.tasks.incrementAndGet();
+            this.cx = lambda == null ? null : spawner.fork(spawner.in,
+                    new Output(Channels.newChannel(out), BUFFER),
+                    new Output(Channels.newChannel(err), BUFFER));
+            this.lambda = lambda;
+            this.arg = arg;
+        }
+
+        public void cancel() {
+            if (cx != null)
+                cx.cancelled = true;
+        }
+
+        private void run() {
+            try {
+                result = Main.Call.invoke(cx, lambda, arg);
+            } catch (Main.BrainError e) {
+                cx.printError(e.getMessage());
+                cx.error = true;
+            } catch (StackOverflowError e) {
+                cx.printError("ERROR: Call stack overflow!");
+                cx.error = true;
+            } finally {
+                cx.tasks.decrementAndGet();
+            }
+            failed = cx.error;
+            cx.out.flush();
+            cx.err.flush();
+        }
+    }
+
+    // starts the call of the lambda with the argument, or makes it now if
+    // the engine already runs as many tasks as it may.
+    static Task spawn(Context cx, Main.Lambda lambda, Main.Value arg) {
+        final Task task = new Task(cx, lambda, arg);
+        if (lambda == null)
+            return task;
+        final Engine engine = cx.getEngine();
+        if (engine.tasks.incrementAndGet() > engine.maxTasks) {
+            engine.tasks.decrementAndGet();
+            task.run();
+            return task;
+        }
+        task.thread = Thread.ofVirtual().name("brain-task").start(() -> {
+            try {
+                task.run();
+            } finally {
+                engine.tasks.decrementAndGet();
+            }
+        });
+        return task;
+    }
+
+    // waits for the task, prints what it printed if no await has yet, and
+    // returns its result. A failed task reports its error again on every
+    // await.
+    static Main.Value await(Context cx, Task task) {
+        if (task.thread != null) {
+            try {
+                task.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Main.BrainError("ERROR: Interrupted while awaiting a task!");
+            }
+        }
+        final byte[] out;
+        synchronized (task) {
+            out = task.printed ? new byte[0] : task.out.toByteArray();
+            task.printed = true;
+        }
+        cx.out.write(out);
+        if (task.failed) {
+            cx.out.flush();
+            cx.err.write(task.err.toByteArray());
+            cx.err.flush();
+            cx.error = true;
+            return Main.Value.NONE;
+        }
+        return task.result;
+    }
+}
@@ -0,0 +1,353 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// the bytecode compiler translates a resolved AST into a VM.Chunk. It
+// mirrors what exec()/eval() do in the tree walker, node for node, so
+// that both tiers print the same output. Nodes it has no instruction for
+// are handed back to the tree walker through EVAL/EXEC.
+public final class BytecodeCompiler {
+    // constant operands are tagged while compiling; they are turned into
+    // register numbers once the number of temporaries is known.
+    private static final int CONSTANT = 1 << 24;
+    // the end of a chain of jumps that still have to be patched
+    private static final int NO_JUMPS = -1;
+
+    private int[] code = new int[64];
+    private int size = 0;
+    private final List<Object> pool = new ArrayList<>();
+    private final List<Main.Value> constants = new ArrayList<>();
+    private final Map<Main.Value, Integer> constantIndex = new HashMap<>();
+    private final List<Integer> constantOperands = new ArrayList<>();
+    private final int locals;
+    private int top;
+    private int maxTop;
+
+    private BytecodeCompiler(int locals) {
+        this.locals = locals;
+        this.top = locals;
+        this.maxTop = locals;
+    }
+
+    // compiles a top-level statement whose frame has the given size.
+    public static VM.Chunk compile(Main.Stmt stmt, int frameSize) {
+        final BytecodeCompiler compiler = new BytecodeCompiler(frameSize);
+        compiler.stmt(stmt);
+        return compiler.finish();
+    }
+
+    // compiles the body of a lambda.
+    public static VM.Chunk compile(Main.Lambda lambda) {
+        final BytecodeCompiler compiler = new BytecodeCompiler(lambda.getFrameSize());
+        compiler.stmt(lambda.getBody());
+        return compiler.finish();
+    }
+
+    private VM.Chunk finish() {
+        emit(VM.HALT);
+        final int constantBase = maxTop;
+        for (int pos : constantOperands)
+            code[pos] += constantBase;
+        return new VM.Chunk(Arrays.copyOf(code, size), pool.toArray(),
+                constants.toArray(new Main.Value[0]), constantBase);
+    }
+
+    // ===-----------------------------------------------------------------===
+    // statements
+
+    private void stmt(Main.Stmt stmt) {
+        while (stmt != null && !(stmt instanceof Main.NullStmt)) {
+            top = locals;
+            if (stmt instanceof Main.Block) {
+                emit(VM.OPEN);
+                stmt(((Main.Block) stmt).getBody());
+                emit(VM.CLOSE);
+            } else if (stmt instanceof Main.AutoStmt) {
+                final Main.AutoStmt auto = (Main.AutoStmt) stmt;
+                final Main.Identifier lhs = auto.getLhs();
+                final int val = expr(auto.getRhs());
+                if (!lhs.isResolved())
+                    emit(VM.BIND, name(lhs), reg(val));
+                else if (auto.isRedeclared())
+                    emit(VM.REDECL, name(lhs));
+                else if (val != lhs.getSlot())
+                    emit(VM.MOVE, lhs.getSlot(), reg(val));
+            } else if (stmt instanceof Main.AssignStmt) {
+                assign((Main.AssignStmt) stmt);
+            } else if (stmt instanceof Main.Write) {
+                emit(VM.WRITE, reg(expr(((Main.Write) stmt).getValue())));
+            } else if (stmt instanceof Main.ExprStmt) {
+                expr(((Main.ExprStmt) stmt).getValue());
+            } else if (stmt instanceof Main.IfStmt) {
+                final Main.IfStmt ifStmt = (Main.IfStmt) stmt;
+                final int toElse = jumpUnless(ifStmt.getCondition(), NO_JUMPS);
+                stmt(ifStmt.getIfBlock());
+                if (ifStmt.getElseBlock() != null) {
+                    final int toEnd = emit(VM.JMP, 0) + 1;
+                    patch(toElse, size);
+                    stmt(ifStmt.getElseBlock());
+                    code[toEnd] = size;
+                } else {
+                    patch(toElse, size);
+                }
+            } else if (stmt instanceof Main.WhileStmt) {
+                final Main.WhileStmt whileStmt = (Main.WhileStmt) stmt;
+                final int start = size;
+                final int toExit = jumpUnless(whileStmt.getCondition(), NO_JUMPS);
+                stmt(whileStmt.getBody());
+                emit(VM.JMP, start);
+                patch(toExit, size);
+            } else {
+                emit(VM.EXEC, constant(stmt));
+            }
+            stmt = stmt.getNext();
+        }
+    }
+
+    private void assign(Main.AssignStmt assign) {
+        final Main.Identifier lhs = assign.getLhs();
+        final Main.Expr rhs = assign.getRhs();
+        if (lhs.isResolved() && rhs instanceof Main.ArithmeticOp) {
+            // x := x + n and x := x - n
+            final Main.ArithmeticOp op = (Main.ArithmeticOp) rhs;
+            if ((op.getOp() == Main.Oper.ADD || op.getOp() == Main.Oper.SUB) &&
+                    op.getLeft() instanceof Main.Identifier &&
+                    ((Main.Identifier) op.getLeft()).isResolved() &&
+                    ((Main.Identifier) op.getLeft()).getSlot() == lhs.getSlot() &&
+                    op.getRight() instanceof Main.Number &&
+                    Math.abs(((Main.Number) op.getRight()).getValue()) < CONSTANT) {
+                final int n = ((Main.Number) op.getRight()).getValue();
+                emit(VM.INCK, lhs.getSlot(), op.getOp() == Main.Oper.ADD ? n : -n);
+                emit(VM.INFO, name(lhs), lhs.getSlot());
+                return;
+            }
+        }
+        final int val = expr(rhs);
+        emit(VM.INFO, name(lhs), reg(val));
+        if (!lhs.isResolved())
+            emit(VM.REBIND, name(lhs), reg(val));
+        else if (val != lhs.getSlot())
+            emit(VM.MOVE, lhs.getSlot(), reg(val));
+    }
+
+    // emits the jumps that are taken when the condition is false. The
+    // targets still to be patched form a chain: each holds the position of
+    // the one before it, the first holds NO_JUMPS. This adds the new jumps
+    // to the given chain and returns it, for patch().
+    private int jumpUnless(Main.Expr condition, int chain) {
+        if (condition instanceof Main.AndOp) {
+            final Main.AndOp and = (Main.AndOp) condition;
+            return jumpUnless(and.getRight(), jumpUnless(and.getLeft(), chain));
+        }
+        if (condition instanceof Main.OrOp) {
+            // a true left side jumps over the right one, straight into the body
+            final Main.OrOp or = (Main.OrOp) condition;
+            final int toRight = jumpUnless(or.getLeft(), NO_JUMPS);
+            final int toBody = emit(VM.JMP, 0) + 1;
+            patch(toRight, size);
+            chain = jumpUnless(or.getRight(), chain);
+            code[toBody] = size;
+            return chain;
+        }
+        if (condition instanceof Main.ComparisonOp) {
+            final Main.ComparisonOp cmp = (Main.ComparisonOp) condition;
+            final int l = expr(cmp.getLeft());
+            final int r = expr(cmp.getRight());
+            final int opcode = switch (cmp.getOp()) {
+                case LT -> VM.JNLT;
+                case LE -> VM.JNLE;
+                case GT -> VM.JNGT;
+                case GE -> VM.JNGE;
+                case EQ -> VM.JNEQ;
+                default -> VM.JNNE;
+            };
+            return emit(opcode, reg(l), reg(r), chain) + 3;
+        }
+        return emit(VM.JF, reg(expr(condition)), chain) + 2;
+    }
+
+    // points every jump of a chain at the target.
+    private void patch(int chain, int target) {
+        while (chain != NO_JUMPS) {
+            final int previous = code[chain];
+            code[chain] = target;
+            chain = previous;
+        }
+    }
+
+    // ===-----------------------------------------------------------------===
+    // expressions; each returns the operand that holds its value.
+
+    private int expr(Main.Expr expr) {
+        if (expr instanceof Main.Identifier) {
+            final Main.Identifier id = (Main.Identifier) expr;
+            if (id.isResolved())
+                return id.getSlot();
+            final int dst = temp();
+            emit(VM.LOADG, dst, name(id));
+            return dst;
+        }
+        if (expr instanceof Main.Number)
+            return constant(Main.Value.of(((Main.Number) expr).getValue()));
+        if (expr instanceof Main.BoolExpr)
+            return constant(Main.Value.of(((Main.BoolExpr) expr).getValue()));
+        if (expr instanceof Main.ArithmeticOp) {
+            final Main.ArithmeticOp op = (Main.ArithmeticOp) expr;
+            return binary(opcode(op.getOp()), op.getLeft(), op.getRight());
+        }
+        if (expr instanceof Main.ComparisonOp) {
+            final Main.ComparisonOp op = (Main.ComparisonOp) expr;
+            return binary(opcode(op.getOp()), op.getLeft(), op.getRight());
+        }
+        if (expr instanceof Main.BooleanOp) {
+            // the right side runs only when the left one does not decide;
+            // JF has checked that the left one is a boolean by then.
+            final Main.BooleanOp op = (Main.BooleanOp) expr;
+            final int l = expr(op.getLeft());
+            final int dst = temp();
+            final int toEnd;
+            if (op instanceof Main.AndOp) {
+                final int toFalse = emit(VM.JF, reg(l), 0) + 2;
+                emit(VM.AND, dst, reg(l), reg(expr(op.getRight())));
+                toEnd = emit(VM.JMP, 0) + 1;
+                code[toFalse] = size;
+                emit(VM.MOVE, dst, reg(l));
+            } else {
+                final int toRight = emit(VM.JF, reg(l), 0) + 2;
+                emit(VM.MOVE, dst, reg(l));
+                toEnd = emit(VM.JMP, 0) + 1;
+                code[toRight] = size;
+                emit(VM.OR, dst, reg(l), reg(expr(op.getRight())));
+            }
+            code[toEnd] = size;
+            return dst;
+        }
+        if (expr instanceof Main.NegationOp)
+            return unary(VM.NEG, ((Main.NegationOp) expr).getRight());
+        if (expr instanceof Main.NotOp)
+            return unary(VM.NOT, ((Main.NotOp) expr).getRight());
+        if (expr instanceof Main.Read) {
+            final int dst = temp();
+            emit(VM.READ, dst);
+            return dst;
+        }
+        if (expr instanceof Main.ReturnExpr) {
+            final Main.ReturnExpr ret = (Main.ReturnExpr) expr;
+            if (ret.isTailCall()) {
+                final Main.Call call = (Main.Call) ret.getValue();
+                final int fun = expr(call.getFunExpr());
+                final int arg = expr(call.getArg());
+                emit(VM.TAILCALL, reg(fun), reg(arg));
+            } else {
+                emit(VM.RET, reg(expr(ret.getValue())));
+            }
+            return constant(Main.Value.NONE);
+        }
+        if (expr instanceof Main.Lambda) {
+            final int dst = temp();
+            emit(VM.LAMBDA, dst, constant(expr));
+            return dst;
+        }
+        if (expr instanceof Main.Call) {
+            final Main.Call call = (Main.Call) expr;
+            final int fun = expr(call.getFunExpr());
+            final int arg = expr(call.getArg());
+            final int dst = temp();
+            emit(VM.CALL, dst, reg(fun), reg(arg));
+            return dst;
+        }
+        final int dst = temp();
+        emit(VM.EVAL, dst, constant(expr));
+        return dst;
+    }
+
+    private int binary(int opcode, Main.Expr left, Main.Expr right) {
+        final int l = expr(left);
+        final int r = expr(right);
+        final int dst = temp();
+        emit(opcode, dst, reg(l), reg(r));
+        return dst;
+    }
+
+    private int unary(int opcode, Main.Expr right) {
+        final int r = expr(right);
+        final int dst = temp();
+        emit(opcode, dst, reg(r));
+        return dst;
+    }
+
+    private static int opcode(Main.Oper op) {
+        return switch (op) {
+            case ADD -> VM.ADD;
+            case SUB -> VM.SUB;
+            case MUL -> VM.MUL;
+            case DIV -> VM.DIV;
+            case LT -> VM.LT;
+            case LE -> VM.LE;
+            case GT -> VM.GT;
+            case GE -> VM.GE;
+            case EQ -> VM.EQ;
+            case NE -> VM.NE;
+            case AND -> VM.AND;
+            case OR -> VM.OR;
+            case NOT -> VM.NOT;
+        };
+    }
+
+    // ===-----------------------------------------------------------------===
+    // registers, pool and code
+
+    private int temp() {
+        final int reg = top++;
+        if (top > maxTop) maxTop = top;
+        return reg;
+    }
+
+    // returns a tagged constant operand for a Value, or a pool index for
+    // anything else (lambdas and fallback nodes).
+    private int constant(Object value) {
+        if (value instanceof Main.Value) {
+            final Main.Value val = (Main.Value) value;
+            Integer index = constantIndex.get(val);
+            if (index == null) {
+                index = constants.size();
+                constants.add(val);
+                constantIndex.put(val, index);
+            }
+            return CONSTANT + index;
+        }
+        pool.add(value);
+        return pool.size() - 1;
+    }
+
+    // names are operands in their own right: their symbols
+    private static int name(Main.Identifier id) {
+        return id.getSymbol();
+    }
+
+    // encodes an operand for emit(); constant operands are flagged so
+    // that emit() can record where they need fixing up.
+    private static int reg(int operand) {
+        if (operand >= CONSTANT)
+            return -1 - operand;
+        return operand;
+    }
+
+    // appends an instruction and returns its position.
+    private int emit(int... words) {
+        if (size + words.length > code.length)
+            code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+        final int start = size;
+        for (int word : words) {
+            if (word <= -1 - CONSTANT) {
+                // a constant operand flagged by reg()
+                constantOperands.add(size);
+                word = -1 - word - CONSTANT;
+            }
+            code[size++] = word;
+        }
+        return start;
+    }
+}
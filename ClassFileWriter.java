@@ -0,0 +1,241 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// a minimal writer for JVM class files, just big enough for the Jit: one
+// class with a constant pool, a few methods and their Code attributes.
+//
+// Classes are written as version 49 (Java 5). That version is verified by
+// type inference, so no StackMapTable has to be computed for branches.
+public final class ClassFileWriter {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private static final int MAJOR_VERSION = 49;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<Code> methods = new ArrayList<>();
+
+    public ClassFileWriter(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++)
+            interfaces[i] = classRef(interfaceNames[i]);
+    }
+
+    // ===-----------------------------------------------------------------===
+    // the constant pool; every entry is written once and then reused.
+
+    private int entry(String key, int tag, Writer body) {
+        final Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        try {
+            pool.writeByte(tag);
+            body.write();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private interface Writer {
+        void write() throws IOException;
+    }
+
+    public int utf8(String s) {
+        return entry("U" + s, 1, () -> pool.writeUTF(s));
+    }
+
+    public int integer(int n) {
+        return entry("I" + n, 3, () -> pool.writeInt(n));
+    }
+
+    public int classRef(String name) {
+        final int utf = utf8(name);
+        return entry("C" + name, 7, () -> pool.writeShort(utf));
+    }
+
+    public int string(String s) {
+        final int utf = utf8(s);
+        return entry("S" + s, 8, () -> pool.writeShort(utf));
+    }
+
+    private int nameAndType(String name, String desc) {
+        final int n = utf8(name);
+        final int d = utf8(desc);
+        return entry("N" + name + ":" + desc, 12, () -> {
+            pool.writeShort(n);
+            pool.writeShort(d);
+        });
+    }
+
+    private int memberRef(int tag, String owner, String name, String desc) {
+        final int c = classRef(owner);
+        final int nt = nameAndType(name, desc);
+        return entry(tag + owner + "." + name + ":" + desc, tag, () -> {
+            pool.writeShort(c);
+            pool.writeShort(nt);
+        });
+    }
+
+    public int fieldRef(String owner, String name, String desc) {
+        return memberRef(9, owner, name, desc);
+    }
+
+    public int methodRef(String owner, String name, String desc) {
+        return memberRef(10, owner, name, desc);
+    }
+
+    public int interfaceMethodRef(String owner, String name, String desc) {
+        return memberRef(11, owner, name, desc);
+    }
+
+    // ===-----------------------------------------------------------------===
+    // methods
+
+    public Code method(int access, String name, String desc, int maxLocals) {
+        final Code code = new Code(access, utf8(name), utf8(desc), maxLocals);
+        methods.add(code);
+        return code;
+    }
+
+    public byte[] toByteArray() {
+        final int codeName = utf8("Code");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces)
+                out.writeShort(i);
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (Code code : methods)
+                code.writeTo(out, codeName);
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // ===-----------------------------------------------------------------===
+    // the body of one method. The operand stack depth is tracked as
+    // instructions are added, so callers pass the stack effect of each one.
+    public static final class Code {
+        public static final class Label {
+            private int position = -1;
+        }
+
+        private final int access;
+        private final int name;
+        private final int desc;
+        private final int maxLocals;
+        private byte[] code = new byte[256];
+        private int size = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        // positions of branch instructions and the labels they jump to
+        private final List<Integer> jumps = new ArrayList<>();
+        private final List<Label> targets = new ArrayList<>();
+
+        private Code(int access, int name, int desc, int maxLocals) {
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+            this.maxLocals = maxLocals;
+        }
+
+        private void put(int b) {
+            if (size == code.length)
+                code = Arrays.copyOf(code, size * 2);
+            code[size++] = (byte) b;
+        }
+
+        private void adjust(int delta) {
+            stack += delta;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        public void op(int opcode, int delta) {
+            put(opcode);
+            adjust(delta);
+        }
+
+        public void op1(int opcode, int operand, int delta) {
+            put(opcode);
+            put(operand);
+            adjust(delta);
+        }
+
+        public void op2(int opcode, int operand, int delta) {
+            put(opcode);
+            put(operand >> 8);
+            put(operand);
+            adjust(delta);
+        }
+
+        public void jump(int opcode, Label target, int delta) {
+            jumps.add(size);
+            targets.add(target);
+            op2(opcode, 0, delta);
+        }
+
+        public void bind(Label label) {
+            label.position = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private void writeTo(DataOutputStream out, int codeName) throws IOException {
+            for (int i = 0; i < jumps.size(); i++) {
+                final int at = jumps.get(i);
+                final int offset = targets.get(i).position - at;
+                if (targets.get(i).position < 0 || offset != (short) offset)
+                    throw new IllegalStateException("branch out of range");
+                code[at + 1] = (byte) (offset >> 8);
+                code[at + 2] = (byte) offset;
+            }
+            if (size > 0xFFFF)
+                throw new IllegalStateException("method too large");
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(desc);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + size);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(size);
+            out.write(code, 0, size);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+    }
+}
@@ -0,0 +1,258 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a context is one Brain program in a run, or one REPL session, with all
+// the state that used to be static in Main: the symbol table, the call
+// stack and frames, the return values, the error flag, and where input
+// comes from and output goes. Every AST node is evaluated against the
+// context passed to it, so contexts made by one Engine never see each
+// other and can run on separate threads.
+public final class Context {
+    private final Engine engine;
+
+    // this indicates if an error has occurred in the running statement.
+    public boolean error = false;
+    // the symbols of the names this context's trees use; see Symbols.
+    public final Symbols symbols;
+    // the symbol table represents the scope of variables.
+    public final Main.SymbolTable table;
+    // the values returned by the running lambdas.
+    public final Stack<Main.Value> returnVariables = new Stack<>();
+    // the frame of the running lambda (or top-level statement). Variables
+    // the Resolver could resolve live in its slots.
+    public Main.Value[] frame = new Main.Value[0];
+    // the frames of the active calls.
+    public final Main.CallStack callStack;
+    // a tail call that the running lambda left for its caller to make in
+    // its place, so that it runs without growing the Java stack.
+    public Main.Lambda tailLambda = null;
+    public Main.Value tailArg = null;
+    // set from another thread to stop a spawned task at its next call or
+    // turn of a loop; see stopIfCancelled().
+    volatile boolean cancelled = false;
+    // whether this context runs part of another one's work; see fork().
+    private final boolean forked;
+    // the tasks spawned by this context or its forks that have not ended
+    // yet; its forks share it. See Async.
+    final AtomicInteger tasks;
+    // how many calls of the prelude's lambdas are running; see Call.invoke()
+    int sharedCalls = 0;
+
+    // where read takes its numbers from, where everything that is printed
+    // goes, and where errors go.
+    public final Input in;
+    public final Output out;
+    public final Output err;
+    // print the read> prompt; only when someone is typing.
+    public boolean prompts = false;
+
+    // what this context switches for itself; see Engine.
+    public boolean useVM;
+    public boolean optimize;
+    public boolean memo;
+    public final Diagnostics diagnostics;
+
+    // what the optimizer changed, and how the memo tables did.
+    public final List<String> optimizations = new ArrayList<>();
+    long memoHits = 0;
+    long memoMisses = 0;
+
+    // the context starts out with the given bindings as its outermost
+    // scope, whose names are symbols of the given interner.
+    Context(Engine engine, Input in, Output out, Output err, Env globals, Symbols symbols) {
+        this(engine, in, out, err, globals, symbols, null);
+    }
+
+    private Context(Engine engine, Input in, Output out, Output err, Env globals, Symbols symbols,
+                    Context spawner) {
+        this.engine = engine;
+        this.forked = spawner != null;
+        this.tasks = spawner != null ? spawner.tasks : new AtomicInteger();
+        this.in = in;
+        this.out = out;
+        this.err = err;
+        this.symbols = symbols;
+        this.table = new Main.SymbolTable(this, globals);
+        this.callStack = new Main.CallStack(this, engine.maxDepth);
+        this.useVM = engine.vm;
+        this.optimize = engine.optimize;
+        this.memo = engine.memo;
+        this.diagnostics = new Diagnostics(out, symbols, engine.diagnostics);
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    // a context for running part of this one's work on another thread. It
+    // starts out with the bindings this one has now, keeps what it binds
+    // to itself, and prints to the given sinks. Memo tables are not safe
+    // to share between threads, so it uses none, and it runs this one's
+    // trees as they are; see mayRewrite().
+    Context fork(Input in, Output out, Output err) {
+        final Context forked = new Context(engine, in, out, err, table.snapshot(), symbols, this);
+        forked.useVM = useVM;
+        forked.memo = false;
+        forked.diagnostics.setLevel(diagnostics.getLevel());
+        return forked;
+    }
+
+    // stops the running statement if the task this context runs was
+    // cancelled. Calls and the back edges of loops on every tier check,
+    // so that a cancelled task cannot run on without end.
+    void stopIfCancelled() {
+        if (cancelled)
+            throw new Main.BrainError("ERROR: Task cancelled!");
+    }
+
+    // whether the trees this context runs may change themselves now: nodes
+    // specializing themselves (see Main.Expr.replace()) and calls caching
+    // their callee. Nothing publishes those changes to other threads, so
+    // they are only made while no other thread can run the trees: forks
+    // always can, and so can spawned tasks until they end. A task ends
+    // by counting itself out of `tasks`, after which what it did happens
+    // before what this context does next. The prelude's trees are run by
+    // every context at once, so they stay as the engine left them.
+    boolean mayRewrite() {
+        return !forked && sharedCalls == 0 && tasks.get() == 0;
+    }
+
+    public long getMemoHits() {
+        return memoHits;
+    }
+
+    public long getMemoMisses() {
+        return memoMisses;
+    }
+
+    // ===-----------------------------------------------------------------===
+    // running programs
+
+    // optimizes a statement if this context does, and returns the one to run.
+    public Main.Stmt optimize(Main.Stmt stmt) {
+        return optimize && stmt != null ? Optimizer.optimize(stmt, optimizations) : stmt;
+    }
+
+    // resolves, type checks and executes a statement, as typed into the
+    // REPL. A statement the Resolver rejects, or with a type error, does
+    // not run at all.
+    public void run(Main.Stmt stmt) {
+        error = false;
+        final List<String> errors = new ArrayList<>();
+        final int slots = Resolver.resolve(stmt, errors);
+        errors.addAll(TypeChecker.check(List.of(stmt), new int[] {slots}, false, symbols));
+        if (errors.isEmpty()) {
+            run(stmt, slots);
+            return;
+        }
+        for (String message : errors)
+            printError(message);
+        error = true;
+    }
+
+    // runs a whole program: it is optimized, resolved and type checked
+    // before any of it runs, and then its statements run one after the
+    // other, each as if it had been typed on its own line. Returns false
+    // if an error found before running kept it from running.
+    public boolean run(List<Main.Stmt> program) {
+        return run(program, true);
+    }
+
+    // runs a whole program like run() does, but in the outermost scope, so
+    // that what it binds stays bound afterwards. The engine's prelude is
+    // defined this way.
+    public boolean define(List<Main.Stmt> program) {
+        return run(program, false);
+    }
+
+    private boolean run(List<Main.Stmt> program, boolean scoped) {
+        for (int i = 0; i < program.size(); i++)
+            program.set(i, optimize(program.get(i)));
+        final List<String> errors = new ArrayList<>();
+        final int[] slots = new int[program.size()];
+        for (int i = 0; i < program.size(); i++) {
+            final List<String> rejected = new ArrayList<>();
+            slots[i] = Resolver.resolve(program.get(i), rejected);
+            for (String message : rejected)
+                errors.add(message + " (statement " + (i + 1) + ")");
+        }
+        // the program is all there is only if nothing is bound outside
+        // it, and nothing runs after it that can call its lambdas
+        errors.addAll(TypeChecker.check(program, slots, scoped && table.globals().size() == 0, symbols));
+        if (!errors.isEmpty()) {
+            for (String message : errors)
+                printError(message);
+            return false;
+        }
+        if (scoped)
+            table.openSessionScope();
+        for (int i = 0; i < program.size(); i++) {
+            error = false;
+            run(program.get(i), slots[i]);
+            // what the statement bound stays reachable through the table
+            program.set(i, null);
+        }
+        if (scoped)
+            table.closeScope();
+        out.flush();
+        return true;
+    }
+
+    // parses and runs the source of a whole program. Returns false if it
+    // did not parse or did not type check.
+    public boolean run(CharSequence source) {
+        final List<Main.Stmt> program;
+        try {
+            program = new Parser(new Lexer(source, symbols)).program();
+        } catch (Error e) {
+            printError("ERROR: " + e.getMessage());
+            return false;
+        }
+        return run(program);
+    }
+
+    // executes one resolved top-level statement with a frame of the given
+    // size. A BrainError (or a Java stack that overflows anyway, or any
+    // other exception) abandons the statement and leaves the context as
+    // it was before it started.
+    private void run(Main.Stmt stmt, int slots) {
+        final int scopes = table.scopeDepth();
+        try {
+            if (useVM)
+                VM.run(this, stmt, slots);
+            else {
+                frame = new Main.Value[slots];
+                stmt.exec(this);
+            }
+        } catch (Main.BrainError e) {
+            printError(e.getMessage());
+            recover(scopes);
+        } catch (StackOverflowError e) {
+            printError("ERROR: Call stack overflow!");
+            recover(scopes);
+        } catch (RuntimeException e) {
+            // a bug in the interpreter; the context goes on all the same
+            printError("ERROR: internal error: " + e);
+            recover(scopes);
+        }
+    }
+
+    // reports an error, after everything printed so far.
+    public void printError(String message) {
+        out.flush();
+        err.println(message);
+        err.flush();
+    }
+
+    private void recover(int scopes) {
+        error = true;
+        callStack.reset();
+        table.unwindTo(scopes);
+        returnVariables.clear();
+        sharedCalls = 0;
+        tailLambda = null;
+        tailArg = null;
+    }
+}
@@ -0,0 +1,75 @@
+// the diagnostic messages of the interpreter. At INFO it reports every
+// assignment and every scope that opens or closes, as the REPL always
+// has; DEBUG adds calls and bindings. OFF is the production setting.
+//
+// Every Context has its own, which prints to the context's output. The
+// levels are plain flags that callers test before they call a message
+// method, so when a level is off not even the message string is built.
+public final class Diagnostics {
+    public enum Level {
+        OFF, INFO, DEBUG;
+
+        // the level with the given name, in any case, or null if there is none.
+        public static Level parse(String name) {
+            for (Level level : values())
+                if (level.name().equalsIgnoreCase(name))
+                    return level;
+            return null;
+        }
+    }
+
+    public boolean info = true;
+    public boolean debug = false;
+    private final Output out;
+    // the names of the symbols in the messages
+    private final Symbols symbols;
+
+    public Diagnostics(Output out, Symbols symbols, Level level) {
+        this.out = out;
+        this.symbols = symbols;
+        setLevel(level);
+    }
+
+    public void setLevel(Level level) {
+        info = level.compareTo(Level.INFO) >= 0;
+        debug = level.compareTo(Level.DEBUG) >= 0;
+    }
+
+    public Level getLevel() {
+        return debug ? Level.DEBUG : info ? Level.INFO : Level.OFF;
+    }
+
+    // ===-----------------------------------------------------------------===
+    // INFO
+
+    public void replacing(int symbol, Main.Value val) {
+        out.println("INFO: replacing the value `" + val + "` in `" + symbols.name(symbol) + "`");
+    }
+
+    public void openScope() {
+        out.println("INFO: Opening scope!");
+    }
+
+    public void closeScope() {
+        out.println("INFO: Closing scope!");
+    }
+
+    public void removing(int symbol) {
+        out.println("Removing '" + symbols.name(symbol) + "' from scope.");
+    }
+
+    // ===-----------------------------------------------------------------===
+    // DEBUG
+
+    public void binding(int symbol, Main.Value val) {
+        out.println("DEBUG: binding `" + symbols.name(symbol) + "` to `" + val + "`");
+    }
+
+    public void calling(Main.Lambda lambda, Main.Value arg) {
+        out.println("DEBUG: calling `lambda " + lambda.getVariable() + "` with `" + arg + "`");
+    }
+
+    public void returning(Main.Value val) {
+        out.println("DEBUG: returning `" + val + "`");
+    }
+}
@@ -0,0 +1,143 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// an engine holds the settings that Brain programs run with, and makes the
+// contexts they run in. The settings a program can switch for itself (the
+// VM, the optimizer, memoization and the diagnostics level) are only the
+// defaults of each new context; the others are shared by all of them.
+//
+// Contexts share nothing but the engine and the prelude, with its names
+// (see Symbols), so each one can run on its own thread. A context itself
+// must only be used by one thread at a time. The trees it parses are run
+// by its forks as well (see Context.fork), which never change them.
+//
+// The prelude is a program run once, whose bindings every context made
+// afterwards starts out with, as its outermost scope. It is kept as an
+// Env, so a new context gets it without copying anything, and a context
+// that binds or rebinds a name there changes only its own copy. Its
+// lambdas are called by every context at once, so they must not change
+// after they are published: they keep no memo tables, their nodes do
+// not specialize themselves (see Context.mayRewrite()), and what they
+// would build on their first calls, the VM's chunk, the Jit's code and
+// the flattened blocks, is built before the prelude is published, hot
+// or not.
+public final class Engine {
+    // the defaults of new contexts
+    public boolean vm = false;
+    public boolean optimize = false;
+    public boolean memo = false;
+    public Diagnostics.Level diagnostics = Diagnostics.Level.OFF;
+
+    // how deep calls may nest in each context
+    public int maxDepth = 100000;
+    // how many results each memo table keeps at most
+    public int memoCapacity = 1 << 12;
+    // whether hot lambdas are compiled, after how many calls, and where
+    // the generated classes are written to, if anywhere
+    public boolean jit = true;
+    public int jitThreshold = 1000;
+    public Path jitDump = null;
+    // how many threads run the pieces of a parsum
+    public int parallelism = Runtime.getRuntime().availableProcessors();
+
+    // how many spawned tasks may run at once; see Async
+    public int maxTasks = 10000;
+
+    // made for the first parsum
+    private ForkJoinPool pool;
+    // the spawned tasks running now
+    final AtomicInteger tasks = new AtomicInteger();
+    // the keywords and the names of the prelude; each context numbers its
+    // own names on top of these (see Symbols)
+    private final Symbols symbols = new Symbols();
+    // the bindings of the prelude
+    private Env prelude = Env.EMPTY;
+
+    public Engine() { }
+
+    // a context that reads from `in` and prints to `out`, with errors going
+    // to `err`. It gets the prelude together with the names it uses.
+    public synchronized Context newContext(Input in, Output out, Output err) {
+        return new Context(this, in, out, err, prelude, new Symbols(symbols));
+    }
+
+    // runs the source as the prelude of the contexts made from now on,
+    // in a context of its own that prints to `out` and `err`, has no
+    // input and shows no diagnostics. Returns false if it did not parse
+    // or type check, and then the prelude stays as it was; a statement
+    // that failed while running leaves what the others bound.
+    public boolean definePrelude(CharSequence source, Output out, Output err) {
+        final Env outer;
+        synchronized (this) {
+            outer = prelude;
+        }
+        // its names go into the engine's interner, for every context to share
+        final Context cx = new Context(this, Input.empty(), out, err, outer, symbols);
+        cx.diagnostics.setLevel(Diagnostics.Level.OFF);
+        final List<Main.Stmt> program;
+        try {
+            program = new Parser(new Lexer(source, symbols)).program();
+        } catch (Error e) {
+            cx.printError("ERROR: " + e.getMessage());
+            return false;
+        }
+        final List<Main.Lambda> lambdas = new ArrayList<>();
+        for (Main.Stmt stmt : program)
+            share(stmt, lambdas);
+        if (!cx.define(program))
+            return false;
+        for (Main.Lambda lambda : lambdas)
+            settle(cx, lambda);
+        cx.out.flush();
+        synchronized (this) {
+            prelude = cx.table.globals();
+        }
+        return true;
+    }
+
+    // marks every lambda in the tree as one the contexts share, and adds
+    // it to the list.
+    private static void share(Main.AST node, List<Main.Lambda> lambdas) {
+        if (node == null)
+            return;
+        if (node instanceof Main.Lambda) {
+            ((Main.Lambda) node).share();
+            lambdas.add((Main.Lambda) node);
+        }
+        for (Main.AST child : node.getChildren())
+            share(child, lambdas);
+    }
+
+    // builds what a shared lambda would build on its first calls.
+    private void settle(Context cx, Main.Lambda lambda) {
+        lambda.getChunk();
+        if (jit && lambda.getJitCode() == null && !lambda.isJitFailed())
+            lambda.setJitCode(Jit.compile(cx, lambda));
+        flatten(lambda.getBody());
+    }
+
+    private static void flatten(Main.AST node) {
+        if (node == null)
+            return;
+        if (node instanceof Main.Block)
+            ((Main.Block) node).getStatements();
+        for (Main.AST child : node.getChildren())
+            flatten(child);
+    }
+
+    // the pool the parsums of every context of this engine run on.
+    synchronized ForkJoinPool pool() {
+        if (pool == null)
+            pool = new ForkJoinPool(Math.max(1, parallelism));
+        return pool;
+    }
+
+    // the Java stack a thread needs to run a context at the full call
+    // depth; smaller stacks give a call stack overflow sooner.
+    public long stackSize() {
+        return 16L * 1024 * 1024 + 4096L * maxDepth;
+    }
+}
@@ -0,0 +1,121 @@
+// the outermost bindings of a symbol table: an immutable map from symbols
+// to values, kept as a hash array mapped trie. Binding a name makes a new
+// map that copies only the nodes on the path to it and shares every other
+// node with the old one, so a map is handed on in O(1) and whoever holds
+// it can change their copy without the others seeing.
+//
+// The engine's prelude is one of these (see Engine.prelude), and so is the
+// snapshot a forked context starts with (see Context.fork). Since nothing
+// can change a map once it is made, any number of threads can read it.
+//
+// Symbols are small distinct numbers (see Symbols), so a symbol is its own
+// hash: each level of the trie takes the next five bits of it, and two
+// symbols always part ways before the bits run out. Names are never taken
+// out of the outermost scope, so there is no removal.
+public final class Env {
+    public static final Env EMPTY = new Env(Node.EMPTY, 0);
+
+    // bits of the symbol used at each level
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private final Node root;
+    private final int size;
+
+    private Env(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    // the value bound to the symbol, or null.
+    public Main.Value get(int symbol) {
+        Node node = root;
+        for (int shift = 0; ; shift += BITS) {
+            final int bit = 1 << ((symbol >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0)
+                return null;
+            final Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (slot instanceof Entry) {
+                final Entry entry = (Entry) slot;
+                return entry.symbol == symbol ? entry.value : null;
+            }
+            node = (Node) slot;
+        }
+    }
+
+    // this map with the symbol bound to the value, in place of any value
+    // it had.
+    public Env with(int symbol, Main.Value value) {
+        final boolean[] added = {false};
+        final Node root = this.root.with(symbol, value, 0, added);
+        return new Env(root, added[0] ? size + 1 : size);
+    }
+
+    // the number of symbols bound.
+    public int size() {
+        return size;
+    }
+
+    // a bound symbol and its value.
+    private static final class Entry {
+        private final int symbol;
+        private final Main.Value value;
+
+        private Entry(int symbol, Main.Value value) {
+            this.symbol = symbol;
+            this.value = value;
+        }
+    }
+
+    // a level of the trie. A bit of the bitmap is set for each of the 32
+    // ways on that is taken, and the slots hold an Entry or a Node for
+    // each set bit, in the order of the bits.
+    private static final class Node {
+        private static final Node EMPTY = new Node(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] slots;
+
+        private Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private Node with(int symbol, Main.Value value, int shift, boolean[] added) {
+            final int bit = 1 << ((symbol >>> shift) & MASK);
+            final int index = Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                final Object[] slots = new Object[this.slots.length + 1];
+                System.arraycopy(this.slots, 0, slots, 0, index);
+                slots[index] = new Entry(symbol, value);
+                System.arraycopy(this.slots, index, slots, index + 1, this.slots.length - index);
+                added[0] = true;
+                return new Node(bitmap | bit, slots);
+            }
+            final Object slot = this.slots[index];
+            final Object replaced;
+            if (slot instanceof Node) {
+                replaced = ((Node) slot).with(symbol, value, shift + BITS, added);
+            } else if (((Entry) slot).symbol == symbol) {
+                replaced = new Entry(symbol, value);
+            } else {
+                // two symbols that share this way so far go on a level down
+                final Entry entry = (Entry) slot;
+                added[0] = true;
+                replaced = pair(entry, new Entry(symbol, value), shift + BITS);
+            }
+            final Object[] slots = this.slots.clone();
+            slots[index] = replaced;
+            return new Node(bitmap, slots);
+        }
+
+        // a node holding two entries whose symbols agree on the bits below shift.
+        private static Node pair(Entry a, Entry b, int shift) {
+            final int wayA = (a.symbol >>> shift) & MASK;
+            final int wayB = (b.symbol >>> shift) & MASK;
+            if (wayA == wayB)
+                return new Node(1 << wayA, new Object[] {pair(a, b, shift + BITS)});
+            return new Node((1 << wayA) | (1 << wayB), wayA < wayB ? new Object[] {a, b} : new Object[] {b, a});
+        }
+    }
+}
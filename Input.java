@@ -0,0 +1,154 @@
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+// the source the interpreter reads from: the lines typed into the REPL and
+// the numbers taken by read. There is one Input per stream, so nothing
+// the REPL has buffered is lost to read or the other way around.
+//
+// Input is line based, like BufferedReader.readLine(). readInt() decodes
+// a line straight from the bytes in the buffer; a line that is not a
+// number is consumed all the same. A file can be read through a channel
+// or mapped into memory whole, which suits large datasets of numbers up
+// to the 2 GB a buffer can hold.
+//
+// Spawned tasks read from the Input of the context that spawned them, so
+// each line is taken under a lock; it is not a monitor, so that a
+// virtual thread waiting for its line does not pin its carrier.
+public final class Input {
+    // what readInt() returns for a line that is not a number, or at the end
+    public static final long NO_NUMBER = Long.MIN_VALUE;
+
+    private static final int SIZE = 1 << 16;
+
+    // null once everything is in the buffer, as with a mapped file
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private byte[] line = new byte[128];
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private Input(ReadableByteChannel channel, ByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    public Input(ReadableByteChannel channel) {
+        this(channel, SIZE);
+    }
+
+    // an Input with a smaller buffer, for when there are many of them
+    public Input(ReadableByteChannel channel, int size) {
+        this(channel, ByteBuffer.allocate(size).flip());
+    }
+
+    // the process's standard input
+    public static Input stdin() {
+        return new Input(new FileInputStream(FileDescriptor.in).getChannel());
+    }
+
+    // an input that is already at its end
+    public static Input empty() {
+        return new Input(null, ByteBuffer.allocate(0));
+    }
+
+    // a file mapped into memory. A buffer holds at most 2 GB, so a larger
+    // file is read through its channel instead.
+    public static Input mapped(Path path) throws IOException {
+        final FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        if (file.size() > Integer.MAX_VALUE)
+            return new Input(file);
+        try (file) {
+            return new Input(null, file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()));
+        }
+    }
+
+    // refills the buffer; returns false at the end of the input
+    private boolean fill() {
+        if (channel == null) return false;
+        buffer.compact();
+        try {
+            final int n = channel.read(buffer);
+            return n > 0 || buffer.position() > 0;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    // the next byte, or -1 at the end of the input
+    private int next() {
+        if (!buffer.hasRemaining() && !fill()) return -1;
+        return buffer.get() & 0xFF;
+    }
+
+    // returns the next line without its terminator, or null at the end.
+    public String readLine() {
+        lock.lock();
+        try {
+            return nextLine();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String nextLine() {
+        int b = next();
+        if (b < 0) return null;
+        int length = 0;
+        while (b >= 0 && b != '\n') {
+            if (length == line.length)
+                line = Arrays.copyOf(line, length * 2);
+            line[length++] = (byte) b;
+            b = next();
+        }
+        if (length > 0 && line[length - 1] == '\r') length--;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // reads the next line as an int, as Integer.parseInt() would parse it.
+    // Returns NO_NUMBER if it is not one, or at the end of the input.
+    public long readInt() {
+        lock.lock();
+        try {
+            return nextInt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long nextInt() {
+        int b = next();
+        if (b < 0) return NO_NUMBER;
+        boolean negative = false;
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            b = next();
+        }
+        long n = 0;
+        int digits = 0;
+        boolean valid = true;
+        for (; b >= 0 && b != '\n'; b = next()) {
+            if (b >= '0' && b <= '9') {
+                n = n * 10 + (b - '0');
+                digits++;
+                // anything beyond this is out of range; keep n from overflowing
+                if (n > 1L << 31) n = 1L << 32;
+            } else if (b != '\r') {
+                valid = false;
+            }
+        }
+        if (negative) n = -n;
+        if (!valid || digits == 0 || n < Integer.MIN_VALUE || n > Integer.MAX_VALUE)
+            return NO_NUMBER;
+        return n;
+    }
+}
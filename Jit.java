@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// the Jit compiles the body of a hot lambda into a JVM class, so that
+// HotSpot can compile it to machine code. Main.Call counts the calls of
+// every lambda; once a lambda has been called `threshold` times with a
+// number, its body is translated by ClassFileWriter into a hidden class
+// that implements Code. Lambdas that use something the Jit cannot
+// compile keep running in the interpreter.
+//
+// Frame slots become JVM locals typed int, boolean or Value, as inferred
+// from what is stored in them. Everything that touches the rest of the
+// interpreter (the symbol table, calls, I/O) goes through the public
+// static helpers at the bottom, which mirror what the tree walker does;
+// those that need the running Context take it as their last argument.
+// When one of them reports an error, the compiled code is unwound with
+// an Abort, so like the VM, compiled code stops at the first error.
+//
+// Whether the Jit is on, its threshold and where it dumps the classes it
+// makes are settings of the Engine.
+public final class Jit {
+    // the interface every compiled lambda implements.
+    public interface Code {
+        void run(Context cx, int arg);
+    }
+
+    // numbers the generated classes of every engine in the JVM
+    private static final AtomicInteger compiled = new AtomicInteger();
+
+    private Jit() { }
+
+    // runs the lambda as compiled code, compiling it first if it just got
+    // hot. Returns false if the caller must interpret the call instead.
+    static boolean run(Context cx, Main.Lambda lambda, Main.Value arg) {
+        final Engine engine = cx.getEngine();
+        if (!engine.jit || arg.getType() != Main.Type.NUM_T)
+            return false;
+        Code code = lambda.getJitCode();
+        if (code == null) {
+            if (lambda.isJitFailed() || lambda.countCall() < engine.jitThreshold)
+                return false;
+            code = compile(cx, lambda);
+            lambda.setJitCode(code);
+            if (code == null)
+                return false;
+        }
+        final int scopes = cx.table.scopeDepth();
+        try {
+            code.run(cx, arg.getNumber());
+        } catch (Abort abort) {
+            while (cx.table.scopeDepth() > scopes)
+                cx.table.closeScope();
+        }
+        return true;
+    }
+
+    // returns the compiled code for the lambda, or null if it cannot be compiled.
+    static Code compile(Context cx, Main.Lambda lambda) {
+        final String name = "BrainJit_" + compiled.getAndIncrement() + "_" + lambda.getVariable();
+        final Path dumpDir = cx.getEngine().jitDump;
+        final byte[] bytes;
+        try {
+            bytes = new JitCompiler(lambda, name).compile();
+        } catch (Unsupported | IllegalStateException e) {
+            return null;
+        }
+        if (dumpDir != null) {
+            try {
+                Files.createDirectories(dumpDir);
+                Files.write(dumpDir.resolve(name + ".class"), bytes);
+            } catch (IOException e) {
+                cx.printError("ERROR: cannot dump " + name + ": " + e.getMessage());
+            }
+        }
+        try {
+            final Class<?> c = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+            return (Code) c.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            cx.printError("ERROR: cannot load " + name + ": " + e);
+            return null;
+        }
+    }
+
+    // thrown by the helpers to unwind compiled code after an error.
+    static final class Abort extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private Abort() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Abort ABORT = new Abort();
+
+    // thrown while compiling a construct the Jit does not handle.
+    static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String what) {
+            super(what, null, false, false);
+        }
+    }
+
+    // ===-----------------------------------------------------------------===
+    // helpers called by compiled code
+
+    private static void check(Context cx) {
+        if (cx.error) throw ABORT;
+    }
+
+    // at the end of every turn of a loop
+    public static void poll(Context cx) {
+        cx.stopIfCancelled();
+    }
+
+    public static void openScope(Context cx) {
+        cx.table.openScope();
+    }
+
+    public static void closeScope(Context cx) {
+        cx.table.closeScope();
+    }
+
+    public static Main.Value lookup(int symbol, Context cx) {
+        final Main.Value val = cx.table.lookup(symbol);
+        check(cx);
+        return val;
+    }
+
+    public static void bind(int symbol, Main.Value val, Context cx) {
+        cx.table.bind(symbol, val);
+    }
+
+    public static void rebind(int symbol, Main.Value val, Context cx) {
+        info(symbol, val, cx);
+        cx.table.rebind(symbol, val);
+    }
+
+    public static void info(int symbol, Main.Value val, Context cx) {
+        if (cx.diagnostics.info)
+            cx.diagnostics.replacing(symbol, val);
+    }
+
+    public static void write(int n, Context cx) {
+        cx.out.println(n);
+    }
+
+    public static void write(boolean b, Context cx) {
+        cx.out.println(b);
+    }
+
+    public static void write(Main.Value val, Context cx) {
+        val.writeTo(cx.out);
+    }
+
+    public static Main.Value read(Context cx) {
+        return Main.Read.readValue(cx);
+    }
+
+    public static void ret(Main.Value val, Context cx) {
+        cx.returnVariables.push(val);
+    }
+
+    public static void tailCall(Main.Value fn, Main.Value arg, Context cx) {
+        if (fn.getType() == Main.Type.FUN_T) {
+            cx.tailArg = arg;
+            cx.tailLambda = fn.getLambda();
+        } else {
+            cx.returnVariables.push(Main.Value.NONE);
+        }
+    }
+
+    public static Main.Value call(Main.Value fn, Main.Value arg, Context cx) {
+        if (fn.getType() != Main.Type.FUN_T)
+            return Main.Value.NONE;
+        final Main.Value result = Main.Call.invoke(cx, fn.getLambda(), arg);
+        check(cx);
+        return result;
+    }
+
+    public static int div(int l, int r, Context cx) {
+        if (r == 0) {
+            cx.printError("ERROR: Division by zero!");
+            cx.error = true;
+            throw ABORT;
+        }
+        return l / r;
+    }
+
+    public static boolean lt(int l, int r) {
+        return l < r;
+    }
+
+    public static boolean le(int l, int r) {
+        return l <= r;
+    }
+
+    public static boolean gt(int l, int r) {
+        return l > r;
+    }
+
+    public static boolean ge(int l, int r) {
+        return l >= r;
+    }
+
+    public static boolean eq(int l, int r) {
+        return l == r;
+    }
+
+    public static boolean ne(int l, int r) {
+        return l != r;
+    }
+}
@@ -0,0 +1,464 @@
+import java.util.Arrays;
+
+// translates the body of one lambda into a class file for the Jit. The
+// generated class implements Jit.Code; its run(Context, int) method
+// executes the body with the argument in the parameter's slot, or, for a
+// parameter the callee may see, with it bound in the table by the caller.
+//
+// Types are tracked per frame slot: a slot that only ever holds numbers
+// is an int local, one that only holds booleans is a boolean local, and
+// anything else is a Main.Value. Conversions between them use the same
+// Value methods the tree walker does, so a type error still surfaces as
+// the same TypeError.
+public final class JitCompiler {
+    private static final int UNKNOWN = 0;
+    private static final int INT = 1;
+    private static final int BOOL = 2;
+    private static final int VALUE = 3;
+
+    // the JVM opcodes used here
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD = 0x19;
+    private static final int ISTORE = 0x36;
+    private static final int ASTORE = 0x3a;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int INEG = 0x74;
+    private static final int IXOR = 0x82;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IF_ICMPEQ = 0x9f;
+    private static final int IF_ICMPNE = 0xa0;
+    private static final int IF_ICMPLT = 0xa1;
+    private static final int IF_ICMPGE = 0xa2;
+    private static final int IF_ICMPGT = 0xa3;
+    private static final int IF_ICMPLE = 0xa4;
+    private static final int GOTO = 0xa7;
+    private static final int RETURN = 0xb1;
+    private static final int GETSTATIC = 0xb2;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private static final String JIT = "Jit";
+    private static final String VALUE_CLASS = "Main$Value";
+    private static final String VALUE_DESC = "LMain$Value;";
+    private static final String CONTEXT_DESC = "LContext;";
+    // locals 0 to 2 hold `this`, the context and the argument
+    private static final int CONTEXT = 1;
+    private static final int ARG = 2;
+    private static final int FIRST_SLOT = 3;
+
+    private final Main.Lambda lambda;
+    private final String className;
+    private final int[] slotTypes;
+    private ClassFileWriter cw;
+    private ClassFileWriter.Code code;
+
+    JitCompiler(Main.Lambda lambda, String className) {
+        this.lambda = lambda;
+        this.className = className;
+        this.slotTypes = new int[lambda.getFrameSize()];
+    }
+
+    byte[] compile() {
+        final Main.Identifier param = lambda.getParam();
+        if (lambda.getBody() == null)
+            throw new Jit.Unsupported("empty body");
+        if (FIRST_SLOT + slotTypes.length > 255)
+            throw new Jit.Unsupported("too many locals");
+        inferTypes(param);
+
+        cw = new ClassFileWriter(className, "java/lang/Object", "Jit$Code");
+        code = cw.method(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", 1);
+        code.op1(ALOAD, 0, 1);
+        code.op2(INVOKESPECIAL, cw.methodRef("java/lang/Object", "<init>", "()V"), -1);
+        code.op(RETURN, 0);
+
+        code = cw.method(ClassFileWriter.ACC_PUBLIC, "run", "(" + CONTEXT_DESC + "I)V", FIRST_SLOT + slotTypes.length);
+        // every local starts out initialized, so the verifier never has to
+        // prove that a declaration runs before a use.
+        for (int slot = 0; slot < slotTypes.length; slot++) {
+            if (slotTypes[slot] == VALUE) code.op(ACONST_NULL, 1);
+            else code.op(ICONST_0, 1);
+            store(slot);
+        }
+        if (param.isResolved()) {
+            code.op1(ILOAD, ARG, 1);
+            coerce(INT, slotTypes[param.getSlot()]);
+            store(param.getSlot());
+        }
+        stmt(lambda.getBody());
+        code.op(RETURN, 0);
+        return cw.toByteArray();
+    }
+
+    // ===-----------------------------------------------------------------===
+    // type inference: iterate over the body until the slot types settle.
+
+    private void inferTypes(Main.Identifier param) {
+        if (param.isResolved())
+            slotTypes[param.getSlot()] = INT;
+        int[] before;
+        do {
+            before = slotTypes.clone();
+            inferStmt(lambda.getBody());
+        } while (!Arrays.equals(before, slotTypes));
+        for (int slot = 0; slot < slotTypes.length; slot++)
+            if (slotTypes[slot] == UNKNOWN) slotTypes[slot] = VALUE;
+    }
+
+    private static int join(int a, int b) {
+        if (a == UNKNOWN) return b;
+        if (b == UNKNOWN || a == b) return a;
+        return VALUE;
+    }
+
+    private void inferStmt(Main.Stmt stmt) {
+        for (; stmt != null; stmt = stmt.getNext()) {
+            if (stmt instanceof Main.AutoStmt) {
+                final Main.AutoStmt auto = (Main.AutoStmt) stmt;
+                final int type = typeOf(auto.getRhs());
+                if (auto.getLhs().isResolved()) {
+                    final int slot = auto.getLhs().getSlot();
+                    slotTypes[slot] = join(slotTypes[slot], type);
+                }
+            } else if (stmt instanceof Main.AssignStmt) {
+                final Main.AssignStmt assign = (Main.AssignStmt) stmt;
+                final int type = typeOf(assign.getRhs());
+                if (assign.getLhs().isResolved()) {
+                    final int slot = assign.getLhs().getSlot();
+                    slotTypes[slot] = join(slotTypes[slot], type);
+                }
+            } else if (stmt instanceof Main.Block) {
+                inferStmt(((Main.Block) stmt).getBody());
+            } else if (stmt instanceof Main.IfStmt) {
+                typeOf(((Main.IfStmt) stmt).getCondition());
+                inferStmt(((Main.IfStmt) stmt).getIfBlock());
+                inferStmt(((Main.IfStmt) stmt).getElseBlock());
+            } else if (stmt instanceof Main.WhileStmt) {
+                typeOf(((Main.WhileStmt) stmt).getCondition());
+                inferStmt(((Main.WhileStmt) stmt).getBody());
+            } else if (stmt instanceof Main.Write) {
+                typeOf(((Main.Write) stmt).getValue());
+            } else if (stmt instanceof Main.ExprStmt) {
+                typeOf(((Main.ExprStmt) stmt).getValue());
+            } else if (!(stmt instanceof Main.NullStmt)) {
+                throw new Jit.Unsupported(stmt.getLabel());
+            }
+        }
+    }
+
+    private int typeOf(Main.Expr expr) {
+        if (expr instanceof Main.Number)
+            return INT;
+        if (expr instanceof Main.BoolExpr)
+            return BOOL;
+        if (expr instanceof Main.Identifier) {
+            final Main.Identifier id = (Main.Identifier) expr;
+            return id.isResolved() ? slotTypes[id.getSlot()] : VALUE;
+        }
+        if (expr instanceof Main.ArithmeticOp) {
+            typeOf(((Main.ArithmeticOp) expr).getLeft());
+            typeOf(((Main.ArithmeticOp) expr).getRight());
+            return INT;
+        }
+        if (expr instanceof Main.ComparisonOp) {
+            typeOf(((Main.ComparisonOp) expr).getLeft());
+            typeOf(((Main.ComparisonOp) expr).getRight());
+            return BOOL;
+        }
+        if (expr instanceof Main.BooleanOp) {
+            typeOf(((Main.BooleanOp) expr).getLeft());
+            typeOf(((Main.BooleanOp) expr).getRight());
+            return BOOL;
+        }
+        if (expr instanceof Main.NegationOp) {
+            typeOf(((Main.NegationOp) expr).getRight());
+            return INT;
+        }
+        if (expr instanceof Main.NotOp) {
+            typeOf(((Main.NotOp) expr).getRight());
+            return BOOL;
+        }
+        if (expr instanceof Main.Call) {
+            typeOf(((Main.Call) expr).getFunExpr());
+            typeOf(((Main.Call) expr).getArg());
+            return VALUE;
+        }
+        if (expr instanceof Main.ReturnExpr) {
+            typeOf(((Main.ReturnExpr) expr).getValue());
+            return VALUE;
+        }
+        if (expr instanceof Main.Read)
+            return VALUE;
+        throw new Jit.Unsupported(expr.getLabel());
+    }
+
+    // ===-----------------------------------------------------------------===
+    // statements
+
+    private void stmt(Main.Stmt stmt) {
+        for (; stmt != null; stmt = stmt.getNext()) {
+            if (stmt instanceof Main.Block) {
+                contextHelper("openScope", "()V", 0);
+                stmt(((Main.Block) stmt).getBody());
+                contextHelper("closeScope", "()V", 0);
+            } else if (stmt instanceof Main.AutoStmt) {
+                final Main.AutoStmt auto = (Main.AutoStmt) stmt;
+                final Main.Identifier lhs = auto.getLhs();
+                if (!lhs.isResolved()) {
+                    name(lhs);
+                    expr(auto.getRhs(), VALUE);
+                    contextHelper("bind", "(I" + VALUE_DESC + ")V", -2);
+                } else if (auto.isRedeclared()) {
+                    throw new Jit.Unsupported("redeclaration");
+                } else {
+                    expr(auto.getRhs(), slotTypes[lhs.getSlot()]);
+                    store(lhs.getSlot());
+                }
+            } else if (stmt instanceof Main.AssignStmt) {
+                assign((Main.AssignStmt) stmt);
+            } else if (stmt instanceof Main.Write) {
+                final int type = expr(((Main.Write) stmt).getValue(), UNKNOWN);
+                if (type == INT) contextHelper("write", "(I)V", -1);
+                else if (type == BOOL) contextHelper("write", "(Z)V", -1);
+                else contextHelper("write", "(" + VALUE_DESC + ")V", -1);
+            } else if (stmt instanceof Main.ExprStmt) {
+                expr(((Main.ExprStmt) stmt).getValue(), UNKNOWN);
+                code.op(POP, -1);
+            } else if (stmt instanceof Main.IfStmt) {
+                final Main.IfStmt ifStmt = (Main.IfStmt) stmt;
+                final ClassFileWriter.Code.Label orElse = new ClassFileWriter.Code.Label();
+                jumpUnless(ifStmt.getCondition(), orElse);
+                stmt(ifStmt.getIfBlock());
+                if (ifStmt.getElseBlock() != null) {
+                    final ClassFileWriter.Code.Label end = new ClassFileWriter.Code.Label();
+                    code.jump(GOTO, end, 0);
+                    code.bind(orElse);
+                    stmt(ifStmt.getElseBlock());
+                    code.bind(end);
+                } else {
+                    code.bind(orElse);
+                }
+            } else if (stmt instanceof Main.WhileStmt) {
+                final Main.WhileStmt whileStmt = (Main.WhileStmt) stmt;
+                final ClassFileWriter.Code.Label start = new ClassFileWriter.Code.Label();
+                final ClassFileWriter.Code.Label exit = new ClassFileWriter.Code.Label();
+                code.bind(start);
+                jumpUnless(whileStmt.getCondition(), exit);
+                stmt(whileStmt.getBody());
+                contextHelper("poll", "()V", 0);
+                code.jump(GOTO, start, 0);
+                code.bind(exit);
+            }
+        }
+    }
+
+    private void assign(Main.AssignStmt assign) {
+        final Main.Identifier lhs = assign.getLhs();
+        if (!lhs.isResolved()) {
+            name(lhs);
+            expr(assign.getRhs(), VALUE);
+            contextHelper("rebind", "(I" + VALUE_DESC + ")V", -2);
+            return;
+        }
+        final int slot = lhs.getSlot();
+        expr(assign.getRhs(), slotTypes[slot]);
+        store(slot);
+        name(lhs);
+        load(slot);
+        coerce(slotTypes[slot], VALUE);
+        contextHelper("info", "(I" + VALUE_DESC + ")V", -2);
+    }
+
+    private void jumpUnless(Main.Expr condition, ClassFileWriter.Code.Label target) {
+        if (condition instanceof Main.AndOp) {
+            jumpUnless(((Main.AndOp) condition).getLeft(), target);
+            jumpUnless(((Main.AndOp) condition).getRight(), target);
+            return;
+        }
+        if (condition instanceof Main.OrOp) {
+            // a true left side jumps over the right one, straight into the body
+            final ClassFileWriter.Code.Label right = new ClassFileWriter.Code.Label();
+            final ClassFileWriter.Code.Label body = new ClassFileWriter.Code.Label();
+            jumpUnless(((Main.OrOp) condition).getLeft(), right);
+            code.jump(GOTO, body, 0);
+            code.bind(right);
+            jumpUnless(((Main.OrOp) condition).getRight(), target);
+            code.bind(body);
+            return;
+        }
+        if (condition instanceof Main.ComparisonOp) {
+            final Main.ComparisonOp cmp = (Main.ComparisonOp) condition;
+            expr(cmp.getLeft(), INT);
+            expr(cmp.getRight(), INT);
+            final int opcode = switch (cmp.getOp()) {
+                case LT -> IF_ICMPGE;
+                case LE -> IF_ICMPGT;
+                case GT -> IF_ICMPLE;
+                case GE -> IF_ICMPLT;
+                case EQ -> IF_ICMPNE;
+                default -> IF_ICMPEQ;
+            };
+            code.jump(opcode, target, -2);
+            return;
+        }
+        expr(condition, BOOL);
+        code.jump(IFEQ, target, -1);
+    }
+
+    // ===-----------------------------------------------------------------===
+    // expressions; each leaves one value of the wanted type on the stack,
+    // or of its own type if UNKNOWN is wanted. Returns the type left.
+
+    private int expr(Main.Expr expr, int wanted) {
+        final int type = gen(expr);
+        if (wanted == UNKNOWN) return type;
+        coerce(type, wanted);
+        return wanted;
+    }
+
+    private int gen(Main.Expr expr) {
+        if (expr instanceof Main.Number) {
+            push(((Main.Number) expr).getValue());
+            return INT;
+        }
+        if (expr instanceof Main.BoolExpr) {
+            push(((Main.BoolExpr) expr).getValue() ? 1 : 0);
+            return BOOL;
+        }
+        if (expr instanceof Main.Identifier) {
+            final Main.Identifier id = (Main.Identifier) expr;
+            if (id.isResolved()) {
+                load(id.getSlot());
+                return slotTypes[id.getSlot()];
+            }
+            name(id);
+            contextHelper("lookup", "(I)" + VALUE_DESC, 0);
+            return VALUE;
+        }
+        if (expr instanceof Main.ArithmeticOp) {
+            final Main.ArithmeticOp op = (Main.ArithmeticOp) expr;
+            expr(op.getLeft(), INT);
+            expr(op.getRight(), INT);
+            switch (op.getOp()) {
+                case ADD -> code.op(IADD, -1);
+                case SUB -> code.op(ISUB, -1);
+                case MUL -> code.op(IMUL, -1);
+                default -> contextHelper("div", "(II)I", -1);
+            }
+            return INT;
+        }
+        if (expr instanceof Main.ComparisonOp) {
+            final Main.ComparisonOp op = (Main.ComparisonOp) expr;
+            expr(op.getLeft(), INT);
+            expr(op.getRight(), INT);
+            helper(op.getOp().name().toLowerCase(), "(II)Z", -1);
+            return BOOL;
+        }
+        if (expr instanceof Main.BooleanOp) {
+            final Main.BooleanOp op = (Main.BooleanOp) expr;
+            // the left side stays on the stack when it decides the result
+            final ClassFileWriter.Code.Label end = new ClassFileWriter.Code.Label();
+            expr(op.getLeft(), BOOL);
+            code.op(DUP, 1);
+            code.jump(op instanceof Main.AndOp ? IFEQ : IFNE, end, -1);
+            code.op(POP, -1);
+            expr(op.getRight(), BOOL);
+            code.bind(end);
+            return BOOL;
+        }
+        if (expr instanceof Main.NegationOp) {
+            expr(((Main.NegationOp) expr).getRight(), INT);
+            code.op(INEG, 0);
+            return INT;
+        }
+        if (expr instanceof Main.NotOp) {
+            expr(((Main.NotOp) expr).getRight(), BOOL);
+            push(1);
+            code.op(IXOR, -1);
+            return BOOL;
+        }
+        if (expr instanceof Main.Call) {
+            expr(((Main.Call) expr).getFunExpr(), VALUE);
+            expr(((Main.Call) expr).getArg(), VALUE);
+            contextHelper("call", "(" + VALUE_DESC + VALUE_DESC + ")" + VALUE_DESC, -1);
+            return VALUE;
+        }
+        if (expr instanceof Main.ReturnExpr) {
+            final Main.ReturnExpr ret = (Main.ReturnExpr) expr;
+            if (ret.isTailCall()) {
+                final Main.Call call = (Main.Call) ret.getValue();
+                expr(call.getFunExpr(), VALUE);
+                expr(call.getArg(), VALUE);
+                contextHelper("tailCall", "(" + VALUE_DESC + VALUE_DESC + ")V", -2);
+            } else {
+                expr(ret.getValue(), VALUE);
+                contextHelper("ret", "(" + VALUE_DESC + ")V", -1);
+            }
+            code.op2(GETSTATIC, cw.fieldRef(VALUE_CLASS, "NONE", VALUE_DESC), 1);
+            return VALUE;
+        }
+        if (expr instanceof Main.Read) {
+            contextHelper("read", "()" + VALUE_DESC, 1);
+            return VALUE;
+        }
+        throw new Jit.Unsupported(expr.getLabel());
+    }
+
+    // converts the value on top of the stack; number/boolean mismatches go
+    // through a Value so they fail exactly like getNumber()/getBoolean().
+    private void coerce(int from, int to) {
+        if (from == to) return;
+        if (from == INT)
+            code.op2(INVOKESTATIC, cw.methodRef(VALUE_CLASS, "of", "(I)" + VALUE_DESC), 0);
+        else if (from == BOOL)
+            code.op2(INVOKESTATIC, cw.methodRef(VALUE_CLASS, "of", "(Z)" + VALUE_DESC), 0);
+        if (to == INT)
+            code.op2(INVOKEVIRTUAL, cw.methodRef(VALUE_CLASS, "getNumber", "()I"), 0);
+        else if (to == BOOL)
+            code.op2(INVOKEVIRTUAL, cw.methodRef(VALUE_CLASS, "getBoolean", "()Z"), 0);
+    }
+
+    // ===-----------------------------------------------------------------===
+    // small emitters
+
+    private void push(int n) {
+        if (n >= -1 && n <= 5) code.op(ICONST_0 + n, 1);
+        else if (n == (byte) n) code.op1(BIPUSH, n, 1);
+        else if (n == (short) n) code.op2(SIPUSH, n, 1);
+        else code.op2(LDC_W, cw.integer(n), 1);
+    }
+
+    private void name(Main.Identifier id) {
+        push(id.getSymbol());
+    }
+
+    private void load(int slot) {
+        code.op1(slotTypes[slot] == VALUE ? ALOAD : ILOAD, FIRST_SLOT + slot, 1);
+    }
+
+    private void store(int slot) {
+        code.op1(slotTypes[slot] == VALUE ? ASTORE : ISTORE, FIRST_SLOT + slot, -1);
+    }
+
+    private void helper(String name, String desc, int delta) {
+        code.op2(INVOKESTATIC, cw.methodRef(JIT, name, desc), delta);
+    }
+
+    // calls a helper that also takes the context, after the operands
+    private void contextHelper(String name, String desc, int delta) {
+        code.op1(ALOAD, CONTEXT, 1);
+        final int end = desc.indexOf(')');
+        helper(name, desc.substring(0, end) + CONTEXT_DESC + desc.substring(end), delta - 1);
+    }
+}
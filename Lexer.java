@@ -33,26 +33,36 @@ public class Lexer {
     public static int IDENT = 30;
     public static int AUTO = 31;
     public static int RETURN = 32;
+    public static int PARSUM = 33;
+    public static int FROM = 34;
+    public static int TO = 35;
+    public static int SPAWN = 36;
+    public static int AWAIT = 37;
+    public static int CANCEL = 38;
 
     public static String[] tokenNames =
             {"n/a", "<EOF>", "NUMBER", "BOOL", "PLUS", "MINUS", "MUL", "DIV", "AND", "OR", "NOT",
                     "ASN", "FUNARG", "LP", "RP", "LC", "RC", "SEMI", "LT", "LE", "GT", "GE", "NE",
-                    "EQ", "IF", "IF_ELSE", "WHILE", "READ", "WRITE", "LAMBDA", "IDENT", "AUTO", "RETURN"};
+                    "EQ", "IF", "IF_ELSE", "WHILE", "READ", "WRITE", "LAMBDA", "IDENT", "AUTO", "RETURN",
+                    "PARSUM", "FROM", "TO", "SPAWN", "AWAIT", "CANCEL"};
 
     // represent end of file char
     private static final char EOF = (char) -1;
     // represent EOF token type
-    private static final int EOF_TYPE = 1;
-    // input string
-    private final String input;
+    static final int EOF_TYPE = 1;
+    // input characters; a String for the REPL, a MappedSource for scripts
+    private final CharSequence input;
+    // where names get their symbols
+    private final Symbols symbols;
     // index into input of current character
     private int p = 0;
     // current character
     private char c;
 
-    public Lexer(String input) {
+    public Lexer(CharSequence input, Symbols symbols) {
         this.input = input;
-        c = input.charAt(p); // prime lookahead
+        this.symbols = symbols;
+        c = input.length() > 0 ? input.charAt(p) : EOF; // prime lookahead
     }
 
     // returns true if the current character is EOF
@@ -79,6 +89,21 @@ public class Lexer {
 
     boolean isDIGIT() { return c >= '0' && c <= '9'; }
 
+    // the keywords and the token types they stand for. Symbols interns
+    // them first, so the symbol of a keyword is its index here.
+    static final String[] KEYWORDS =
+            {"true", "false", "read", "write", "while", "if", "ifelse", "lambda", "and", "or", "not", "auto", "ret",
+                    "parsum", "from", "to", "spawn", "await", "cancel"};
+    private static final int[] KEYWORD_TYPES =
+            {BOOL, BOOL, READ, WRITE, WHILE, IF, IF_ELSE, LAMBDA, AND, OR, NOT, AUTO, RETURN,
+                    PARSUM, FROM, TO, SPAWN, AWAIT, CANCEL};
+
+    // the offsets of the token last returned by next(), and its symbol
+    // if it is a name
+    private int start = 0;
+    private int end = 0;
+    private int symbol = -1;
+
     public List<Token> getTokens() {
         List<Token> tokenList = new ArrayList<>();
         while (!isEOF())
@@ -87,7 +112,49 @@ public class Lexer {
     }
 
     public Token nextToken() {
+        final int type = next();
+        return new Token(type, type == EOF_TYPE ? "<EOF>" : text(start, end));
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public int getSymbol() {
+        return symbol;
+    }
+
+    public Symbols getSymbols() {
+        return symbols;
+    }
+
+    // the characters of the input between two offsets
+    public String text(int start, int end) {
+        return input.subSequence(start, end).toString();
+    }
+
+    // the value of the NUMBER token between two offsets, computed from
+    // its digits without going through a String.
+    public int number(int start, int end) {
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = input.charAt(i) - '0';
+            if (n > (Integer.MAX_VALUE - digit) / 10)
+                throw new Error("number too large: " + text(start, end));
+            n = n * 10 + digit;
+        }
+        return n;
+    }
+
+    // scans the next token and returns its type; its text lies between
+    // getStart() and getEnd(). Nothing is allocated per token.
+    public int next() {
         while (c != EOF) {
+            start = p;
             switch (c) {
                 case ' ':
                 case '\t':
@@ -96,105 +163,93 @@ public class Lexer {
                     WS();
                     continue;
                 case ';':
-                    consume();
-                    return new Token(SEMI, ";");
+                    return single(SEMI);
                 case '{':
-                    consume();
-                    return new Token(LC, "{");
+                    return single(LC);
                 case '}':
-                    consume();
-                    return new Token(RC, "}");
+                    return single(RC);
                 case '(':
-                    consume();
-                    return new Token(LP, "(");
+                    return single(LP);
                 case ')':
-                    consume();
-                    return new Token(RP, ")");
+                    return single(RP);
                 case '=':
-                    consume();
-                    return new Token(EQ, "=");
+                    return single(EQ);
                 case '!':
                     consume();
                     if (c == '=') {
                         consume();
-                        return new Token(NE, "!=");
+                        end = p;
+                        return NE;
                     }
                 case '<':
                     consume();
                     if (c == '=') {
                         consume();
-                        return new Token(LE, "<=");
+                        end = p;
+                        return LE;
                     }
-                    return new Token(LT, "<");
+                    end = p;
+                    return LT;
                 case '>':
                     consume();
                     if (c == '=') {
                         consume();
-                        return new Token(GE, ">=");
+                        end = p;
+                        return GE;
                     }
-                    return new Token(GT, ">");
+                    end = p;
+                    return GT;
                 case '@':
-                    consume();
-                    return new Token(FUNARG, "@");
+                    return single(FUNARG);
                 case ':':
                     consume();
                     if (c != '=') throw new Error("expecting =, found " + c);
                     consume();
-                    return new Token(ASN, ":=");
+                    end = p;
+                    return ASN;
                 case '+':
-                    consume();
-                    return new Token(ADD, "+");
+                    return single(ADD);
                 case '-':
-                    consume();
-                    return new Token(SUB, "-");
+                    return single(SUB);
                 case '*':
-                    consume();
-                    return new Token(MUL, "*");
+                    return single(MUL);
                 case '/':
-                    consume();
-                    return new Token(DIV, "/");
+                    return single(DIV);
                 default:
                     if (isLETTER()) return NAME();
                     else if (isDIGIT()) return NUMBER();
                     throw new Error("invalid character: " + c);
             }
         }
-        return new Token(EOF_TYPE, "<EOF>");
+        start = end = p;
+        return EOF_TYPE;
+    }
+
+    private int single(int type) {
+        consume();
+        end = p;
+        return type;
     }
 
     // NAME is sequence of >=1 letter
-    Token NAME() {
-        StringBuilder buf = new StringBuilder();
+    int NAME() {
         do {
-            buf.append(c);
             consume();
         } while (isLETTER());
-        final String str = buf.toString();
-        return switch (str) {
-            case "true", "false" -> new Token(BOOL, str);
-            case "read" -> new Token(READ, str);
-            case "write" -> new Token(WRITE, str);
-            case "while" -> new Token(WHILE, str);
-            case "if" -> new Token(IF, str);
-            case "ifelse" -> new Token(IF_ELSE, str);
-            case "lambda" -> new Token(LAMBDA, str);
-            case "and" -> new Token(AND, str);
-            case "or" -> new Token(OR, str);
-            case "not" -> new Token(NOT, str);
-            case "auto" -> new Token(AUTO, str);
-            case "ret" -> new Token(RETURN, str);
-            default -> new Token(IDENT, str);
-        };
+        end = p;
+        symbol = symbols.intern(input, start, end);
+        if (symbol < KEYWORDS.length)
+            return KEYWORD_TYPES[symbol];
+        return IDENT;
     }
 
     // NUMBER is a sequence of >=1 digit
-    Token NUMBER() {
-        StringBuilder buf = new StringBuilder();
+    int NUMBER() {
         do {
-            buf.append(c);
             consume();
         } while (isDIGIT());
-        return new Token(NUMBER, buf.toString());
+        end = p;
+        return NUMBER;
     }
 
     // ignore any whitespace
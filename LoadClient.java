@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// drives a Server with many sessions at once, to see how it keeps up. It
+// opens every session first, one virtual thread each, and once all are
+// connected they send their statements as fast as the answers come. It
+// reports the throughput over all sessions and the latency of a single
+// statement, from sending its line to reading the status that ends the
+// answer.
+//
+//     java LoadClient <port | unix:path> [--sessions=1000] [--requests=100]
+//
+// Each session declares a lambda and then calls it with a different
+// argument for every request, so that the server runs the tree walker
+// and, once the lambda is hot, its compiled code.
+public final class LoadClient {
+    private static final String SETUP = "auto square := lambda n { ret := n * n; };";
+
+    private LoadClient() { }
+
+    public static void main(String[] args) throws InterruptedException {
+        String spec = null;
+        int sessions = 1000;
+        int requests = 100;
+        for (String arg : args) {
+            if (arg.startsWith("--sessions=")) sessions = Integer.parseInt(arg.substring(11));
+            else if (arg.startsWith("--requests=")) requests = Integer.parseInt(arg.substring(11));
+            else spec = arg;
+        }
+        if (spec == null) {
+            System.err.println("usage: LoadClient <port | unix:path> [--sessions=n] [--requests=n]");
+            return;
+        }
+        final SocketAddress address = Server.address(spec);
+        final int perSession = requests;
+        // the latency of every request, in nanoseconds; each session
+        // fills its own stretch.
+        final long[] latencies = new long[sessions * requests];
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch connected = new CountDownLatch(sessions);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[sessions];
+        for (int s = 0; s < sessions; s++) {
+            final int session = s;
+            threads[s] = Thread.ofVirtual().start(() -> {
+                final SocketChannel channel;
+                try {
+                    channel = open(address);
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                    return;
+                } finally {
+                    connected.countDown();
+                }
+                try (channel) {
+                    final Input in = new Input(channel, 1 << 10);
+                    final Output out = new Output(channel, 1 << 8);
+                    start.await();
+                    if (!request(in, out, SETUP))
+                        errors.incrementAndGet();
+                    for (int i = 0; i < perSession; i++) {
+                        final long sent = System.nanoTime();
+                        if (!request(in, out, "write square@" + i + ";"))
+                            errors.incrementAndGet();
+                        latencies[session * perSession + i] = System.nanoTime() - sent;
+                        completed.incrementAndGet();
+                    }
+                    out.println("quit");
+                    out.flush();
+                } catch (IOException | InterruptedException e) {
+                    failed.incrementAndGet();
+                }
+            });
+        }
+        connected.await();
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        final long elapsed = System.nanoTime() - begin;
+
+        final int n = completed.get();
+        final long[] done = Arrays.stream(latencies).filter(l -> l > 0).sorted().toArray();
+        System.out.printf("%d sessions (%d failed), %d requests (%d errors) in %d ms: %.0f requests/s%n",
+                sessions, failed.get(), n, errors.get(), elapsed / 1_000_000, n * 1e9 / elapsed);
+        if (done.length > 0)
+            System.out.printf("latency: p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                    percentile(done, 50), percentile(done, 99), done[done.length - 1] / 1e6);
+    }
+
+    private static SocketChannel open(SocketAddress address) throws IOException {
+        final SocketChannel channel = address instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                : SocketChannel.open();
+        channel.connect(address);
+        return channel;
+    }
+
+    // sends one line and reads the answer up to its status. Returns false
+    // if the statement failed.
+    private static boolean request(Input in, Output out, String line) throws IOException {
+        out.println(line);
+        out.flush();
+        while (true) {
+            final String answer = in.readLine();
+            if (answer == null) throw new IOException("the server closed the session");
+            if ("ok".equals(answer)) return true;
+            if ("error".equals(answer)) return false;
+        }
+    }
+
+    // the latency in milliseconds that the given percent of the sorted
+    // latencies do not exceed.
+    private static double percentile(long[] sorted, int percent) {
+        final int rank = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(rank, 0)] / 1e6;
+    }
+}
@@ -1,31 +1,26 @@
 import javax.xml.namespace.QName;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.nio.file.Path;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class Main {
-    // this global variable indicates if an error has occurred.
-    public static boolean error = false;
-    // this global symbol table represents the scope of variables.
-    public static SymbolTable table = new SymbolTable();
-    // this global variable indicates if a variable/value is returned
-    // by a lambda function.
-    public static Stack<Value> returnVariables = new Stack<>();
+    // the AST nodes are evaluated against a Context, which holds the
+    // state of the running program; main() makes one from an Engine.
 
     // ===-----------------------------------------------------------------===
     // the AST clas is the super-class for abstract syntax trees.
     // Every AST node hast its own subclass.
     public static abstract class AST {
         protected String label = "EMPTY";
-        protected LinkedList<AST> children = new LinkedList<>();
+        // most nodes have two or three children
+        protected List<AST> children = new ArrayList<>(3);
+        // the node this is a child of, so that a node can replace itself
+        protected AST parent;
 
         public AST() { }
 
@@ -38,6 +33,22 @@ public class Main {
         }
 
         public abstract void addChild(AST child);
+
+        // puts a new subtree where an old one was, for the setters that
+        // replace a child after the node is built, and for nodes that
+        // rewrite themselves. Nodes that keep a child in a field as well
+        // override this to update the field.
+        protected void replaceChild(AST oldChild, AST newChild) {
+            final int index = children.indexOf(oldChild);
+            if (index >= 0) children.set(index, newChild);
+            if (newChild != null) newChild.parent = this;
+        }
+
+        protected boolean holds(AST child) {
+            for (AST c : children)
+                if (c == child) return true;
+            return false;
+        }
     }
 
     // ===-----------------------------------------------------------------===
@@ -45,17 +56,44 @@ public class Main {
     // represent actual computations that return something, such
     // as a Value object.
     public static class Expr extends AST {
-        protected Value eval() {
-            if (!error) {
-                System.err.println("eval() not yet implemented for " + this.getClass().getSimpleName());
-                error = true;
+        protected Value eval(Context cx) {
+            if (!cx.error) {
+                cx.printError("eval(cx) not yet implemented for " + this.getClass().getSimpleName());
+                cx.error = true;
             }
-            return new Value();
+            return Value.NONE;
+        }
+
+        // these evaluate straight to a primitive. Nodes that compute numbers
+        // or booleans override them, so that nested arithmetic and
+        // comparisons never wrap their intermediate results in a Value.
+        protected int evalNumber(Context cx) {
+            return eval(cx).getNumber();
+        }
+
+        protected boolean evalBoolean(Context cx) {
+            return eval(cx).getBoolean();
+        }
+
+        // puts the given node in the place of this one in the tree, and
+        // returns it. Nodes use this to specialize themselves once they
+        // have seen what they operate on; see IntAdd and FrameRead. They
+        // only do so while no other thread can run them (see
+        // Context.mayRewrite()), since nothing publishes the new node.
+        protected <T extends Expr> T replace(T node) {
+            parent.replaceChild(this, node);
+            return node;
+        }
+
+        // whether this node is still where the tree walker will find it
+        protected boolean isAttached() {
+            return parent != null && parent.holds(this);
         }
 
         @Override
         public void addChild(AST child) {
             children.add(child);
+            if (child != null) child.parent = this;
         }
     }
 
@@ -63,30 +101,179 @@ public class Main {
     // an identifier such as the name of a variable or function.
     public static class Identifier extends Expr {
         protected String value;
-
-        public Identifier(final String value) {
+        // the interned name, which the symbol table is indexed by
+        protected int symbol;
+        // the (depth, slot) coordinate given by the Resolver; a negative
+        // depth means the name is looked up in the symbol table instead.
+        protected int depth = -1;
+        protected int slot = -1;
+        // whether the name is declared in the lambda (or top-level
+        // statement) that uses it, in a slot or not
+        protected boolean local = false;
+
+        public Identifier(final int symbol, final String value) {
+            this.symbol = symbol;
             this.value = value;
-            this.label = "Identifier `" + value + "`";
         }
 
-        public void setValue(final String value) {
-            this.value = value;
+        // a copy of what the Resolver found out about the identifier, for
+        // the nodes it specializes itself into.
+        protected Identifier(final Identifier id) {
+            this(id.symbol, id.value);
+            this.depth = id.depth;
+            this.slot = id.slot;
+            this.local = id.local;
+        }
+
+        // labels of leaves are built when the tree is printed, so that
+        // large programs do not keep one string per leaf around.
+        @Override
+        public String getLabel() {
+            return "Identifier `" + value + "`";
+        }
+
+        public void resolve(final int depth, final int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        public boolean isResolved() {
+            return depth >= 0;
+        }
+
+        public void markLocal() {
+            local = true;
+        }
+
+        public boolean isLocal() {
+            return local;
+        }
+
+        public int getSlot() {
+            return slot;
         }
 
         public String getValue() {
             return value;
         }
 
+        public int getSymbol() {
+            return symbol;
+        }
+
         @Override
-        protected Value eval() {
+        protected Value eval(Context cx) {
             // TODO: students need to complete this   //done
-            if (!error) {
+            if (!cx.error) {
                 // CODE HERE
-                // return value from table
-                return table.lookup(value);
+                // return value from frame, or from table
+                final Value val = depth >= 0 && cx.frame[slot] != null ? cx.frame[slot] : cx.table.lookup(symbol);
+                // from now on, read from where the value lives
+                if (cx.mayRewrite() && isAttached())
+                    replace(depth >= 0 ? new FrameRead(this) : new GlobalRead(this));
+                return val;
+
+            }
+            return Value.NONE;
+        }
+    }
+
+    // an Identifier with a frame slot, as it specializes itself once it
+    // has run. The slot is empty only while a caller binds the name
+    // dynamically; the symbol table has it then.
+    public static final class FrameRead extends Identifier {
+        public FrameRead(Identifier id) {
+            super(id);
+        }
+
+        @Override
+        protected Value eval(Context cx) {
+            if (!cx.error) {
+                final Value val = cx.frame[slot];
+                return val != null ? val : cx.table.lookup(symbol);
+            }
+            return Value.NONE;
+        }
+
+        // these call the eval(cx) above directly, not through Expr's
+        @Override
+        protected int evalNumber(Context cx) {
+            return eval(cx).getNumber();
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            return eval(cx).getBoolean();
+        }
+    }
+
+    // an Identifier that is always looked up in the symbol table.
+    public static final class GlobalRead extends Identifier {
+        public GlobalRead(Identifier id) {
+            super(id);
+        }
+
+        @Override
+        protected Value eval(Context cx) {
+            if (!cx.error)
+                return cx.table.lookup(symbol);
+            return Value.NONE;
+        }
+
+        @Override
+        protected int evalNumber(Context cx) {
+            return eval(cx).getNumber();
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            return eval(cx).getBoolean();
+        }
+    }
+
+    // the typed reads the TypeChecker lowers an Identifier to, when every
+    // value its slot is ever given is a number (or a boolean). They take
+    // the payload without checking its type, unless an error has already
+    // been flagged, when values may be missing.
+    public static final class NumFrameRead extends Identifier {
+        public NumFrameRead(Identifier id) {
+            super(id);
+        }
+
+        @Override
+        protected Value eval(Context cx) {
+            if (!cx.error) {
+                final Value val = cx.frame[slot];
+                return val != null ? val : cx.table.lookup(symbol);
+            }
+            return Value.NONE;
+        }
+
+        @Override
+        protected int evalNumber(Context cx) {
+            final Value val = cx.frame[slot];
+            return val != null && !cx.error ? val.number : eval(cx).getNumber();
+        }
+    }
+
+    public static final class BoolFrameRead extends Identifier {
+        public BoolFrameRead(Identifier id) {
+            super(id);
+        }
 
+        @Override
+        protected Value eval(Context cx) {
+            if (!cx.error) {
+                final Value val = cx.frame[slot];
+                return val != null ? val : cx.table.lookup(symbol);
             }
-            return new Value();
+            return Value.NONE;
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            final Value val = cx.frame[slot];
+            return val != null && !cx.error ? val.bool : eval(cx).getBoolean();
         }
     }
 
@@ -94,15 +281,30 @@ public class Main {
     // a literal number in the program.
     public static class Number extends Expr {
         protected int value;
+        private final Value cached;
 
         public Number(final int value) {
             this.value = value;
-            this.label = "Number `" + value + "`";
+            this.cached = Value.of(value);
+        }
+
+        @Override
+        public String getLabel() {
+            return "Number `" + value + "`";
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        @Override
+        protected Value eval(Context cx) {
+            return cached;
         }
 
         @Override
-        protected Value eval() {
-            return new Value(value);
+        protected int evalNumber(Context cx) {
+            return value;
         }
     }
 
@@ -113,15 +315,28 @@ public class Main {
 
         public BoolExpr(final boolean value) {
             this.value = value;
-            this.label = "Boolean `" + value + "`";
         }
 
         @Override
-        protected Value eval() {
+        public String getLabel() {
+            return "Boolean `" + value + "`";
+        }
+
+        public boolean getValue() {
+            return value;
+        }
+
+        @Override
+        protected Value eval(Context cx) {
             // TODO: students need to complete this  //done
             // CODE HERE
             //return val
-            return new Value(value);
+            return Value.of(value);
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            return value;
         }
     }
 
@@ -132,10 +347,16 @@ public class Main {
     }
 
     // a binary operation for arithmetic operations such as +, -, *, or /.
+    // A new node runs its operator through a switch. Once it has seen both
+    // operands give numbers, it replaces itself with the node for just its
+    // operator, such as IntAdd, so each node left in a hot loop is a small
+    // method that HotSpot can inline.
     public static class ArithmeticOp extends Expr {
         private final Oper op;
-        private final Expr left;
-        private final Expr right;
+        protected Expr left;
+        protected Expr right;
+        // cleared when a specialized node has fallen back to this one
+        private boolean specialize = true;
 
         public ArithmeticOp(Expr left, Expr right, Oper op) {
             this.op = op;
@@ -146,35 +367,195 @@ public class Main {
             addChild(right);
         }
 
+        public Oper getOp() {
+            return op;
+        }
+
+        public Expr getLeft() {
+            return left;
+        }
+
+        public Expr getRight() {
+            return right;
+        }
+
         @Override
-        protected Value eval() {
-            final int l = left.eval().getNumber();
-            final int r = right.eval().getNumber();
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (left == oldChild) left = (Expr) newChild;
+            if (right == oldChild) right = (Expr) newChild;
+        }
+
+        @Override
+        protected Value eval(Context cx) {
+            final int l = left.evalNumber(cx);
+            final int r = right.evalNumber(cx);
+            if (op == Oper.DIV && r == 0) {
+                divisionByZero(cx);
+                return Value.NONE;
+            }
+            specialize(cx);
+            return Value.of(apply(l, r));
+        }
+
+        @Override
+        protected int evalNumber(Context cx) {
+            final int l = left.evalNumber(cx);
+            final int r = right.evalNumber(cx);
+            if (op == Oper.DIV && r == 0) {
+                divisionByZero(cx);
+                return 0;
+            }
+            specialize(cx);
+            return apply(l, r);
+        }
+
+        private int apply(final int l, final int r) {
             switch (op) {
                 case ADD:
-                    return new Value(l + r);
+                    return l + r;
                 case SUB:
-                    return new Value(l - r);
+                    return l - r;
                 case MUL:
-                    return new Value(l * r);
-                case DIV: {
-                    if (r != 0) return new Value(l / r);
-                    else if (!error) {
-                        System.err.println("ERROR: Division by zero!");
-                        error = true;
-                    }
+                    return l * r;
+                default:
+                    return l / r;
+            }
+        }
+
+        private void specialize(Context cx) {
+            if (specialize && cx.mayRewrite() && isAttached())
+                replace(specialized());
+        }
+
+        // the node for just this operator
+        protected ArithmeticOp specialized() {
+            return switch (op) {
+                case ADD -> new IntAdd(left, right);
+                case SUB -> new IntSub(left, right);
+                case MUL -> new IntMul(left, right);
+                default -> new IntDiv(left, right);
+            };
+        }
+
+        // a specialized node met an operand that is not a number: a generic
+        // node takes its place again, for good, and the error goes on.
+        protected RuntimeException fallBack(Context cx, RuntimeException e) {
+            if (cx.mayRewrite() && isAttached())
+                replace(new ArithmeticOp(left, right, op)).specialize = false;
+            return e;
+        }
+
+        protected static void divisionByZero(Context cx) {
+            if (!cx.error) {
+                cx.printError("ERROR: Division by zero!");
+                cx.error = true;
+            }
+        }
+    }
+
+    // the nodes an ArithmeticOp specializes into, one per operator.
+    public static abstract class IntArithmeticOp extends ArithmeticOp {
+        protected IntArithmeticOp(Expr left, Expr right, Oper op) {
+            super(left, right, op);
+        }
+
+        @Override
+        protected Value eval(Context cx) {
+            return Value.of(evalNumber(cx));
+        }
+    }
+
+    public static final class IntAdd extends IntArithmeticOp {
+        public IntAdd(Expr left, Expr right) {
+            super(left, right, Oper.ADD);
+        }
+
+        @Override
+        protected int evalNumber(Context cx) {
+            try {
+                return left.evalNumber(cx) + right.evalNumber(cx);
+            } catch (TypeError e) {
+                throw fallBack(cx, e);
+            }
+        }
+    }
+
+    public static final class IntSub extends IntArithmeticOp {
+        public IntSub(Expr left, Expr right) {
+            super(left, right, Oper.SUB);
+        }
+
+        @Override
+        protected int evalNumber(Context cx) {
+            try {
+                return left.evalNumber(cx) - right.evalNumber(cx);
+            } catch (TypeError e) {
+                throw fallBack(cx, e);
+            }
+        }
+    }
+
+    public static final class IntMul extends IntArithmeticOp {
+        public IntMul(Expr left, Expr right) {
+            super(left, right, Oper.MUL);
+        }
+
+        @Override
+        protected int evalNumber(Context cx) {
+            try {
+                return left.evalNumber(cx) * right.evalNumber(cx);
+            } catch (TypeError e) {
+                throw fallBack(cx, e);
+            }
+        }
+    }
+
+    public static final class IntDiv extends IntArithmeticOp {
+        public IntDiv(Expr left, Expr right) {
+            super(left, right, Oper.DIV);
+        }
+
+        @Override
+        protected Value eval(Context cx) {
+            try {
+                final int l = left.evalNumber(cx);
+                final int r = right.evalNumber(cx);
+                if (r == 0) {
+                    divisionByZero(cx);
+                    return Value.NONE;
+                }
+                return Value.of(l / r);
+            } catch (TypeError e) {
+                throw fallBack(cx, e);
+            }
+        }
+
+        @Override
+        protected int evalNumber(Context cx) {
+            try {
+                final int l = left.evalNumber(cx);
+                final int r = right.evalNumber(cx);
+                if (r == 0) {
+                    divisionByZero(cx);
+                    return 0;
                 }
+                return l / r;
+            } catch (TypeError e) {
+                throw fallBack(cx, e);
             }
-            return new Value();
         }
     }
 
     // ===-----------------------------------------------------------------===
-    // a binary operator for comparison such as < or !=.
+    // a binary operator for comparison such as < or !=. Like ArithmeticOp,
+    // it specializes itself into the node for its operator, such as IntLt.
     public static class ComparisonOp extends Expr {
         private final Oper op;
-        private final Expr left;
-        private final Expr right;
+        protected Expr left;
+        protected Expr right;
+        // cleared when a specialized node has fallen back to this one
+        private boolean specialize = true;
 
         public ComparisonOp(Expr left, Expr right, Oper op) {
             this.left = left;
@@ -185,66 +566,238 @@ public class Main {
             addChild(right);
         }
 
+        public Oper getOp() {
+            return op;
+        }
+
+        public Expr getLeft() {
+            return left;
+        }
+
+        public Expr getRight() {
+            return right;
+        }
+
+        @Override
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (left == oldChild) left = (Expr) newChild;
+            if (right == oldChild) right = (Expr) newChild;
+        }
+
         @Override
-        protected Value eval() {
+        protected Value eval(Context cx) {
             // TODO: students need to complete this //done
-            final int l = left.eval().getNumber();
-            final int r = right.eval().getNumber();
             // CODE HERE
 //          cmpr statments
+            return Value.of(evalBoolean(cx));
+        }
 
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            final int l = left.evalNumber(cx);
+            final int r = right.evalNumber(cx);
+            if (specialize && cx.mayRewrite() && isAttached())
+                replace(specialized());
             // returns the results
             //java style switch statment
             return switch (op) {
-                case LT -> new Value(l < r);
-                case GT -> new Value(l > r);
-                case LE -> new Value(l <= r);
-                case GE -> new Value(l >= r);
-                case EQ -> new Value(l == r);
-                case NE -> new Value(l != r);
-                default -> new Value();
+                case LT -> l < r;
+                case GT -> l > r;
+                case LE -> l <= r;
+                case GE -> l >= r;
+                case EQ -> l == r;
+                default -> l != r;
             };
         }
+
+        // the node for just this operator
+        protected ComparisonOp specialized() {
+            return switch (op) {
+                case LT -> new IntLt(left, right);
+                case GT -> new IntGt(left, right);
+                case LE -> new IntLe(left, right);
+                case GE -> new IntGe(left, right);
+                case EQ -> new IntEq(left, right);
+                default -> new IntNe(left, right);
+            };
+        }
+
+        // see ArithmeticOp.fallBack()
+        protected RuntimeException fallBack(Context cx, RuntimeException e) {
+            if (cx.mayRewrite() && isAttached())
+                replace(new ComparisonOp(left, right, op)).specialize = false;
+            return e;
+        }
+    }
+
+    // the nodes a ComparisonOp specializes into, one per operator.
+    public static final class IntLt extends ComparisonOp {
+        public IntLt(Expr left, Expr right) {
+            super(left, right, Oper.LT);
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            try {
+                return left.evalNumber(cx) < right.evalNumber(cx);
+            } catch (TypeError e) {
+                throw fallBack(cx, e);
+            }
+        }
+    }
+
+    public static final class IntGt extends ComparisonOp {
+        public IntGt(Expr left, Expr right) {
+            super(left, right, Oper.GT);
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            try {
+                return left.evalNumber(cx) > right.evalNumber(cx);
+            } catch (TypeError e) {
+                throw fallBack(cx, e);
+            }
+        }
+    }
+
+    public static final class IntLe extends ComparisonOp {
+        public IntLe(Expr left, Expr right) {
+            super(left, right, Oper.LE);
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            try {
+                return left.evalNumber(cx) <= right.evalNumber(cx);
+            } catch (TypeError e) {
+                throw fallBack(cx, e);
+            }
+        }
+    }
+
+    public static final class IntGe extends ComparisonOp {
+        public IntGe(Expr left, Expr right) {
+            super(left, right, Oper.GE);
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            try {
+                return left.evalNumber(cx) >= right.evalNumber(cx);
+            } catch (TypeError e) {
+                throw fallBack(cx, e);
+            }
+        }
+    }
+
+    public static final class IntEq extends ComparisonOp {
+        public IntEq(Expr left, Expr right) {
+            super(left, right, Oper.EQ);
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            try {
+                return left.evalNumber(cx) == right.evalNumber(cx);
+            } catch (TypeError e) {
+                throw fallBack(cx, e);
+            }
+        }
+    }
+
+    public static final class IntNe extends ComparisonOp {
+        public IntNe(Expr left, Expr right) {
+            super(left, right, Oper.NE);
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            try {
+                return left.evalNumber(cx) != right.evalNumber(cx);
+            } catch (TypeError e) {
+                throw fallBack(cx, e);
+            }
+        }
     }
 
     // ===-----------------------------------------------------------------===
-    // a binary operation for boolean logic such as and, or.
-    public static class BooleanOp extends Expr {
+    // a binary operation for boolean logic such as and, or. The right
+    // operand is evaluated only when the left one does not decide the
+    // result, so each operator has its own node class below.
+    public static abstract class BooleanOp extends Expr {
         private final Oper op;
-        private final Expr left;
-        private final Expr right;
+        protected Expr left;
+        protected Expr right;
 
-        public BooleanOp(Expr left, Expr right, Oper op) {
+        protected BooleanOp(Expr left, Expr right, Oper op) {
             this.left = left;
             this.right = right;
             this.op = op;
-            this.label = "BooleanOp `<left> <op> <right>`";
             addChild(left);
             addChild(right);
         }
 
+        public Oper getOp() {
+            return op;
+        }
+
+        public Expr getLeft() {
+            return left;
+        }
+
+        public Expr getRight() {
+            return right;
+        }
+
+        @Override
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (left == oldChild) left = (Expr) newChild;
+            if (right == oldChild) right = (Expr) newChild;
+        }
+
         @Override
-        protected Value eval() {
+        protected Value eval(Context cx) {
             // TODO: students need to complete this  //done
             // returns the results of our comparison statement
             //java style switch return
-            final boolean l = left.eval().getBoolean();
-            final boolean r = right.eval().getBoolean();
             // CODE HERE
-            return switch (op) {
-                case AND -> new Value(l && r);
-                case OR -> new Value(l || r);
-                default ->
+            return Value.of(evalBoolean(cx));
+        }
+    }
 
-                        new Value();
-            };
+    // `<left> and <right>`; the right operand runs only if the left is true.
+    public static class AndOp extends BooleanOp {
+        public AndOp(Expr left, Expr right) {
+            super(left, right, Oper.AND);
+            this.label = "AndOp `<left> and <right>`";
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            return left.evalBoolean(cx) && right.evalBoolean(cx);
+        }
+    }
+
+    // `<left> or <right>`; the right operand runs only if the left is false.
+    public static class OrOp extends BooleanOp {
+        public OrOp(Expr left, Expr right) {
+            super(left, right, Oper.OR);
+            this.label = "OrOp `<left> or <right>`";
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            return left.evalBoolean(cx) || right.evalBoolean(cx);
         }
     }
 
     // ===-----------------------------------------------------------------===
     // this class represents a unary negation operation.
     public static class NegationOp extends Expr {
-        private final Expr right;
+        private Expr right;
 
         public NegationOp(Expr right) {
             this.right = right;
@@ -252,19 +805,33 @@ public class Main {
             addChild(right);
         }
 
+        public Expr getRight() {
+            return right;
+        }
+
+        @Override
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (right == oldChild) right = (Expr) newChild;
+        }
+
         @Override
-        protected Value eval() {
+        protected Value eval(Context cx) {
             // TODO: students need to complete this  //done
             // return the negative value of our number
-            final int r = right.eval().getNumber();
-            return new Value(-1 * r);
+            return Value.of(evalNumber(cx));
+        }
+
+        @Override
+        protected int evalNumber(Context cx) {
+            return -1 * right.evalNumber(cx);
         }
     }
 
     // ===-----------------------------------------------------------------===
     // this class represents a unary not operator.
     public static class NotOp extends Expr {
-        private final Expr right;
+        private Expr right;
 
         public NotOp(Expr right) {
             this.right = right;
@@ -272,11 +839,25 @@ public class Main {
             addChild(right);
         }
 
+        public Expr getRight() {
+            return right;
+        }
+
+        @Override
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (right == oldChild) right = (Expr) newChild;
+        }
+
         @Override
-        protected Value eval() {
+        protected Value eval(Context cx) {
             // TODO: students need to complete this  //done
-            final boolean r = right.eval().getBoolean();
-            return new Value(!r);
+            return Value.of(evalBoolean(cx));
+        }
+
+        @Override
+        protected boolean evalBoolean(Context cx) {
+            return !right.evalBoolean(cx);
         }
     }
 
@@ -288,22 +869,24 @@ public class Main {
         }
 
         @Override
-        protected Value eval() {
-            System.out.print("read> ");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
-            try {
-                final String val = reader.readLine();
-                return new Value(Integer.parseInt(val));
-            } catch (Exception ignored) {
-            }
-            return new Value();
+        protected Value eval(Context cx) {
+            return readValue(cx);
+        }
+
+        static Value readValue(Context cx) {
+            if (cx.prompts)
+                cx.out.print("read> ");
+            cx.out.flush();
+            final long n = cx.in.readInt();
+            return n == Input.NO_NUMBER ? Value.NONE : Value.of((int) n);
         }
     }
 
     // ===-----------------------------------------------------------------===
     // a return expression.
     public static class ReturnExpr extends Expr {
-        private final Expr value;
+        private Expr value;
+        private boolean tailCall = false;
 
         public ReturnExpr(Expr value) {
             this.value = value;
@@ -311,19 +894,43 @@ public class Main {
             addChild(value);
         }
 
+        public Expr getValue() {
+            return value;
+        }
+
         @Override
-        protected Value eval() {
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (value == oldChild) value = (Expr) newChild;
+        }
+
+        // set by the Resolver when this is a `ret := f@x` that is the last
+        // thing its lambda runs.
+        public void setTailCall(boolean tailCall) {
+            this.tailCall = tailCall;
+        }
+
+        public boolean isTailCall() {
+            return tailCall;
+        }
+
+        @Override
+        protected Value eval(Context cx) {
             // TODO: students need to complete this  //done
-            if (!error) {
+            if (!cx.error) {
+                if (tailCall) {
+                    Call.scheduleTail(cx, (Call) value);
+                    return Value.NONE;
+                }
 //                 CODE HERE
                 //eval the value expr and return result
                 //idk why it doesnt work
-                Value result = value.eval();
-                returnVariables.push(result);
-                return new Value();
+                Value result = value.eval(cx);
+                cx.returnVariables.push(result);
+                return Value.NONE;
             }
             //default return if an error
-            return new Value();
+            return Value.NONE;
         }
     }
 
@@ -362,8 +969,7 @@ public class Main {
         }
 
         public void setNext(Stmt next) {
-            children.removeLast();
-            children.add(next);
+            children.set(children.size() - 1, next);
             this.next = next;
         }
 
@@ -371,10 +977,18 @@ public class Main {
             return next != null;
         }
 
-        public void exec() {
-            if (!error) {
-                System.err.println("exec() not yet implemented for " + this.getClass().getSimpleName());
-                error = true;
+        // runs this statement and the ones that follow it. The sequence is
+        // walked in a loop, so its length does not grow the Java stack.
+        public void exec(Context cx) {
+            for (Stmt stmt = this; stmt != null; stmt = stmt.next)
+                stmt.execute(cx);
+        }
+
+        // runs just this statement; every statement overrides this.
+        protected void execute(Context cx) {
+            if (!cx.error) {
+                cx.printError("execute() not yet implemented for " + this.getClass().getSimpleName());
+                cx.error = true;
             }
         }
 
@@ -382,6 +996,7 @@ public class Main {
         public void addChild(AST child) {
             // this inserts before the last thing in the list
             children.add(children.size() - 1, child);
+            if (child != null) child.parent = this;
         }
     }
 
@@ -395,7 +1010,7 @@ public class Main {
 
         // nothing to execute!
         @Override
-        public void exec() { }
+        protected void execute(Context cx) { }
     }
 
     // ===-----------------------------------------------------------------===
@@ -403,6 +1018,11 @@ public class Main {
     // in curly braces { and }. This is where scopes will begin and end.
     public static class Block extends Stmt {
         private Stmt body;
+        // the statements of the body, flattened on the first run; the
+        // linked list stays as built by the parser for the tree view.
+        // Threads that run the block at once may each flatten it, and the
+        // volatile field hands on a finished array.
+        private volatile Stmt[] statements;
 
         public Block(Stmt body) {
             this.body = body;
@@ -411,7 +1031,24 @@ public class Main {
         }
 
         public void setBody(Stmt body) {
+            replaceChild(this.body, body);
             this.body = body;
+            this.statements = null;
+        }
+
+        public Stmt[] getStatements() {
+            Stmt[] statements = this.statements;
+            if (statements == null) {
+                int count = 0;
+                for (Stmt stmt = body; stmt != null; stmt = stmt.getNext())
+                    if (!(stmt instanceof NullStmt)) count++;
+                statements = new Stmt[count];
+                count = 0;
+                for (Stmt stmt = body; stmt != null; stmt = stmt.getNext())
+                    if (!(stmt instanceof NullStmt)) statements[count++] = stmt;
+                this.statements = statements;
+            }
+            return statements;
         }
 
         public Stmt getBody() {
@@ -419,15 +1056,16 @@ public class Main {
         }
 
         @Override
-        public void exec() {
+        protected void execute(Context cx) {
             // TODO: students need to complete this   //might be done
             // CODE HERE
            //open scope
             //body gets called so exec
             //then close scope
-            table.openScope();
-            body.exec();
-            table.closeScope();
+            cx.table.openScope();
+            for (Stmt stmt : getStatements())
+                stmt.execute(cx);
+            cx.table.closeScope();
 
         }
     }
@@ -453,15 +1091,23 @@ public class Main {
                 addChild(new NullStmt());
         }
 
+        @Override
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (condition == oldChild) condition = (Expr) newChild;
+        }
+
         public void setCondition(Expr condition) {
-            this.condition = condition;
+            replaceChild(this.condition, condition);
         }
 
         public void setIfBlock(Stmt ifBlock) {
+            replaceChild(this.ifBlock, ifBlock);
             this.ifBlock = ifBlock;
         }
 
         public void setElseBlock(Stmt elseBlock) {
+            replaceChild(this.elseBlock, elseBlock);
             this.elseBlock = elseBlock;
         }
 
@@ -478,28 +1124,27 @@ public class Main {
         }
 
         @Override
-        public void exec() {
+        protected void execute(Context cx) {
             // TODO: students need to complete this  // done
-            if (!error) {
+            if (!cx.error) {
                 // CODE HERE
                 //if value from map return true / use getBoolean call
                 //then execute if block
                 //else if the else block has value, execute else block
                 //if else block is null only if condition will happen
 
-                boolean check = condition.eval().getBoolean();
+                boolean check = condition.evalBoolean(cx);
 
                 if(check && ifBlock != null)
                 {
-                    ifBlock.exec();
+                    ifBlock.execute(cx);
                 }
                 else if(!check && elseBlock != null)
                 {
-                    elseBlock.exec();
+                    elseBlock.execute(cx);
                 }
 
             }
-            getNext().exec();
         }
     }
 
@@ -518,11 +1163,18 @@ public class Main {
                 addChild(body);
         }
 
+        @Override
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (condition == oldChild) condition = (Expr) newChild;
+        }
+
         public void setCondition(Expr condition) {
-            this.condition = condition;
+            replaceChild(this.condition, condition);
         }
 
         public void setBody(Stmt body) {
+            replaceChild(this.body, body);
             this.body = body;
         }
 
@@ -535,20 +1187,20 @@ public class Main {
         }
 
         @Override
-        public void exec() {
+        protected void execute(Context cx) {
             // TODO: students need to complete this   //not done
-            if (!error) {
+            if (!cx.error) {
                 // CODE HERE
                 //while condiotn return true
                 //execute body and keep on checking
                 //last check to stop infinite loop
-                boolean loopCheck = condition.eval().getBoolean();
+                boolean loopCheck = condition.evalBoolean(cx);
                 while(loopCheck) {
-                    body.exec();
-                    loopCheck = condition.eval().getBoolean();
+                    body.execute(cx);
+                    cx.stopIfCancelled();
+                    loopCheck = condition.evalBoolean(cx);
                 }
             }
-            getNext().exec();
         }
     }
 
@@ -558,6 +1210,8 @@ public class Main {
     public static class AutoStmt extends Stmt {
         private Identifier lhs;
         private Expr rhs;
+        // set by the Resolver when the variable is already bound in this scope.
+        private boolean redeclared = false;
 
         public AutoStmt(Identifier lhs, Expr rhs) {
             this.lhs = lhs;
@@ -567,12 +1221,19 @@ public class Main {
             addChild(rhs);
         }
 
+        @Override
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (rhs == oldChild) rhs = (Expr) newChild;
+        }
+
         public void setLhs(Identifier lhs) {
+            replaceChild(this.lhs, lhs);
             this.lhs = lhs;
         }
 
         public void setRhs(Expr rhs) {
-            this.rhs = rhs;
+            replaceChild(this.rhs, rhs);
         }
 
         public Identifier getLhs() {
@@ -583,10 +1244,23 @@ public class Main {
             return rhs;
         }
 
+        public void setRedeclared(boolean redeclared) {
+            this.redeclared = redeclared;
+        }
+
+        public boolean isRedeclared() {
+            return redeclared;
+        }
+
         @Override
-        public void exec() {
-            table.bind(lhs.getValue(), rhs.eval());
-            getNext().exec();
+        protected void execute(Context cx) {
+            final Value val = rhs.eval(cx);
+            if (!lhs.isResolved())
+                cx.table.bind(lhs.getSymbol(), val);
+            else if (redeclared)
+                cx.out.println("ERROR: Variable " + lhs.getValue() + " already bound!");
+            else
+                cx.frame[lhs.getSlot()] = val;
         }
     }
 
@@ -605,12 +1279,19 @@ public class Main {
             addChild(rhs);
         }
 
+        @Override
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (rhs == oldChild) rhs = (Expr) newChild;
+        }
+
         public void setLhs(Identifier lhs) {
+            replaceChild(this.lhs, lhs);
             this.lhs = lhs;
         }
 
         public void setRhs(Expr rhs) {
-            this.rhs = rhs;
+            replaceChild(this.rhs, rhs);
         }
 
         public Identifier getLhs() {
@@ -622,23 +1303,28 @@ public class Main {
         }
 
         @Override
-        public void exec() {
+        protected void execute(Context cx) {
             // TODO: complete by implementation   //done
-            if (!error) {
+            if (!cx.error) {
                 // CODE HERE
                 // rebind variable (follow syntax)
                 //same syntax as AutoStmt
-                System.out.println("INFO: replacing the value `" + rhs.eval() + "` in `" + lhs.getValue() + "`");
-                table.rebind(lhs.getValue(), rhs.eval());
+                // the right-hand side is evaluated once, for the message too
+                final Value val = rhs.eval(cx);
+                if (cx.diagnostics.info)
+                    cx.diagnostics.replacing(lhs.getSymbol(), val);
+                if (lhs.isResolved())
+                    cx.frame[lhs.getSlot()] = val;
+                else
+                    cx.table.rebind(lhs.getSymbol(), val);
             }
-            getNext().exec();
         }
     }
 
     // ===-----------------------------------------------------------------===
     // this is a write statement.
     public static class Write extends Stmt {
-        private final Expr value;
+        private Expr value;
 
         public Write(Expr value) {
             this.value = value;
@@ -647,18 +1333,31 @@ public class Main {
         }
 
         @Override
-        public void exec() {
-            Value val = value.eval();
-            if (!error)
-                val.writeTo();
-            getNext().exec();
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (value == oldChild) value = (Expr) newChild;
+        }
+
+        public void setValue(Expr value) {
+            replaceChild(this.value, value);
+        }
+
+        public Expr getValue() {
+            return value;
+        }
+
+        @Override
+        protected void execute(Context cx) {
+            Value val = value.eval(cx);
+            if (!cx.error)
+                val.writeTo(cx.out);
         }
     }
 
     // ===-----------------------------------------------------------------===
     // an expression statement that consists of a single expression.
     public static class ExprStmt extends Stmt {
-        private final Expr value;
+        private Expr value;
 
         public ExprStmt(Expr value) {
             this.value = value;
@@ -667,10 +1366,23 @@ public class Main {
         }
 
         @Override
-        public void exec() {
-            if (!error)
-                value.eval();
-            getNext().exec();
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (value == oldChild) value = (Expr) newChild;
+        }
+
+        public void setValue(Expr value) {
+            replaceChild(this.value, value);
+        }
+
+        public Expr getValue() {
+            return value;
+        }
+
+        @Override
+        protected void execute(Context cx) {
+            if (!cx.error)
+                value.eval(cx);
         }
     }
 
@@ -679,6 +1391,27 @@ public class Main {
     public static class Lambda extends Expr {
         private final Identifier variable;
         private final Stmt body;
+        // number of frame slots the body needs, set by the Resolver.
+        private int frameSize = 0;
+        // the body compiled for the VM, built on the first call there.
+        // Threads that call the lambda at once may each build one; the
+        // volatile fields hand on finished code, which never changes.
+        private volatile VM.Chunk chunk;
+        // call count and compiled code for the Jit.
+        private volatile int calls = 0;
+        private volatile Jit.Code jitCode;
+        private volatile boolean jitFailed = false;
+        // the memo table, made on the first call if the lambda is pure.
+        // Forks use none, so only the thread of the context that parsed
+        // the lambda touches it.
+        private Memo memo;
+        private boolean memoChecked = false;
+        // set for the lambdas of the engine's prelude, which every context
+        // calls; they keep no memo table, since it is not safe to share,
+        // and their trees do not change once defined (see Engine).
+        private boolean shared = false;
+        // the value this lambda evaluates to.
+        private Value value;
 
         public Lambda(Identifier variable, Stmt body) {
             this.variable = variable;
@@ -692,22 +1425,81 @@ public class Main {
             return variable.getValue();
         }
 
+        public Identifier getParam() {
+            return variable;
+        }
+
+        public void setFrameSize(int frameSize) {
+            this.frameSize = frameSize;
+        }
+
+        public int getFrameSize() {
+            return frameSize;
+        }
+
+        public int countCall() {
+            return CALLS.incrementAndGet(this);
+        }
+
+        private static final AtomicIntegerFieldUpdater<Lambda> CALLS =
+                AtomicIntegerFieldUpdater.newUpdater(Lambda.class, "calls");
+
+        public Jit.Code getJitCode() {
+            return jitCode;
+        }
+
+        public void setJitCode(Jit.Code jitCode) {
+            this.jitFailed = jitCode == null;
+            this.jitCode = jitCode;
+        }
+
+        public boolean isJitFailed() {
+            return jitFailed;
+        }
+
+        public Memo getMemo(int capacity) {
+            if (!memoChecked) {
+                memo = Memo.of(this, capacity);
+                memoChecked = true;
+            }
+            return memo;
+        }
+
+        public void share() {
+            shared = true;
+        }
+
+        public boolean isShared() {
+            return shared;
+        }
+
+        public VM.Chunk getChunk() {
+            VM.Chunk chunk = this.chunk;
+            if (chunk == null)
+                this.chunk = chunk = BytecodeCompiler.compile(this);
+            return chunk;
+        }
+
         public Stmt getBody() {
-            //System.out.println(body);
+            //out.println(body);
             return body;
         }
 
         @Override
-        protected Value eval() {
+        protected Value eval(Context cx) {
             // TODO: students must complete this     //done
-            if (!error) {
+            if (!cx.error) {
                 // CODE HERE
-                // call newLambda val
-                Lambda newLambda = new Lambda(variable, body);
-
-                return new Value(newLambda);
+                // lambdas capture nothing, so every evaluation shares one value
+                return asValue();
             }
-            return new Value();
+            return Value.NONE;
+        }
+
+        public Value asValue() {
+            if (value == null)
+                value = Value.of(this);
+            return value;
         }
     }
 
@@ -715,8 +1507,11 @@ public class Main {
     // a function call consists of the function name, and the actual
     // argument. Note that all functions are unary.
     public static class Call extends Expr {
-        private final Expr funExpr;
-        private final Expr arg;
+        private Expr funExpr;
+        private Expr arg;
+        // the inline cache: the lambda the callee's name was last bound to
+        // in a symbol table, and the version of that binding there.
+        private CallCache cache;
 
         public Call(Expr funExpr, Expr arg) {
             this.funExpr = funExpr;
@@ -726,65 +1521,434 @@ public class Main {
             addChild(arg);
         }
 
+        public Expr getFunExpr() {
+            return funExpr;
+        }
+
+        public Expr getArg() {
+            return arg;
+        }
+
+        @Override
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (funExpr == oldChild) funExpr = (Expr) newChild;
+            if (arg == oldChild) arg = (Expr) newChild;
+        }
+
         @Override
-        protected Value eval() {
+        protected Value eval(Context cx) {
             // TODO: students must complete this  // done
-            if (!error) {
+            if (!cx.error) {
                 // CODE HERE
                 //get val
                 //check if it matches
                 //pass as arg
-                Value functionVal = funExpr.eval();
+                final Lambda lambda = callee(cx);
+                if (lambda != null)
+                    return invoke(cx, lambda, arg.eval(cx));
+            }
+            return Value.NONE;
+        }
+
+        // returns the lambda to call, or null if funExpr is not a function.
+        // A callee that is looked up in the symbol table is cached along
+        // with the version of its binding, so that calling it again skips
+        // the lookup until the name is bound to something else.
+        Lambda callee(Context cx) {
+            final CallCache cache = this.cache;
+            if (cache != null && cache.table == cx.table && cx.table.version(cache.symbol) == cache.version)
+                return cache.lambda;
+            final Value functionVal = funExpr.eval(cx);
+            if (functionVal.getType() != Type.FUN_T)
+                return null;
+            if (funExpr instanceof GlobalRead && !cx.error && cx.mayRewrite()) {
+                final int symbol = ((GlobalRead) funExpr).getSymbol();
+                this.cache = new CallCache(cx.table, symbol, cx.table.version(symbol), functionVal.getLambda());
+            }
+            return functionVal.getLambda();
+        }
+
+        // one entry of the inline cache. It is replaced whole, never
+        // changed, and only by a context that may change its trees (see
+        // Context.mayRewrite()); a fork checks it, but against its own
+        // table, since the versions of different tables say nothing about
+        // each other.
+        private static final class CallCache {
+            private final SymbolTable table;
+            private final int symbol;
+            private final int version;
+            private final Lambda lambda;
+
+            private CallCache(SymbolTable table, int symbol, int version, Lambda lambda) {
+                this.table = table;
+                this.symbol = symbol;
+                this.version = version;
+                this.lambda = lambda;
+            }
+        }
 
-                if (functionVal.getType() == Type.FUN_T) {
-                    Lambda lambda = functionVal.getLambda();
+        // calls the lambda with an already evaluated argument. Lambdas that
+        // are called often enough run as code compiled by the Jit. Tail
+        // calls left by the body are made here, in a loop, so a chain of
+        // them takes one call stack entry. A pure lambda answers from its
+        // memo table when it has seen the argument before.
+        static Value invoke(Context cx, Lambda lambda, Value argValue) {
+            final Memo memo = cx.memo && !lambda.shared ? lambda.getMemo(cx.getEngine().memoCapacity) : null;
+            long key = Memo.NO_KEY;
+            if (memo != null && memo.isCurrent(cx.table, lambda)) {
+                key = Memo.key(argValue);
+                final Value known = key != Memo.NO_KEY ? memo.get(key) : null;
+                if (known != null) {
+                    cx.memoHits++;
+                    return known;
+                }
+                if (key != Memo.NO_KEY)
+                    cx.memoMisses++;
+            }
+            cx.callStack.push();
+            // a parameter that a callee or nested lambda may see lives in
+            // the symbol table, in a scope of its own. A tail call made in
+            // its place still sees it, so the scopes end with the whole chain.
+            int scopes = 0;
+            while (true) {
+                // every call, tail calls included, is where a cancelled task stops
+                cx.stopIfCancelled();
+                if (cx.diagnostics.debug)
+                    cx.diagnostics.calling(lambda, argValue);
+                final Identifier param = lambda.getParam();
+                final boolean scoped = !param.isResolved();
+                // the trees of the prelude's lambdas do not change
+                final boolean shared = lambda.shared;
+                if (shared)
+                    cx.sharedCalls++;
+                if (scoped) {
+                    cx.table.openScope();
+                    cx.table.bind(param.getSymbol(), argValue);
+                    scopes++;
+                }
+                if (!Jit.run(cx, lambda, argValue)) {
+                    if (cx.useVM)
+                        VM.call(cx, lambda, argValue);
+                    else {
+                        // the callee gets the activation record of its depth
+                        cx.frame = cx.callStack.record(lambda.getFrameSize());
+                        if (!scoped)
+                            cx.frame[param.getSlot()] = argValue;
+
+                        // call body
+                        lambda.getBody().exec(cx);
+                    }
+                }
+                if (shared)
+                    cx.sharedCalls--;
+                if (cx.tailLambda == null)
+                    break;
+                lambda = cx.tailLambda;
+                argValue = cx.tailArg;
+                cx.tailLambda = null;
+                cx.tailArg = null;
+            }
+            for (; scopes > 0; scopes--)
+                cx.table.closeScope();
+            cx.callStack.pop();
+            final Value result = cx.returnVariables.isEmpty() ? Value.NONE : cx.returnVariables.pop();
+            if (cx.diagnostics.debug)
+                cx.diagnostics.returning(result);
+            if (key != Memo.NO_KEY && !cx.error)
+                memo.put(key, result);
+            return result;
+        }
+
+        // makes `ret := f@x` in tail position: the call is left for
+        // invoke() to make once the running body is done.
+        static void scheduleTail(Context cx, Call call) {
+            final Lambda lambda = call.callee(cx);
+            if (lambda != null) {
+                cx.tailArg = call.getArg().eval(cx);
+                cx.tailLambda = lambda;
+            } else {
+                cx.returnVariables.push(Value.NONE);
+            }
+        }
+    }
 
-                    String param = lambda.getVariable();
-                    Value argValue = arg.eval();
+    // ===-----------------------------------------------------------------===
+    // a parallel sum over a range: `parsum i from a to b { ... }` runs its
+    // body for every i from a to b, both included, and adds up what each
+    // run returns with `ret :=`, as a lambda body would. The runs are
+    // spread over the engine's fork/join pool (see Parallel), each worker
+    // with bindings of its own, so the body may not assign to anything
+    // declared outside it; the Resolver rejects that before it runs.
+    public static class ParSum extends Expr {
+        private final Identifier variable;
+        private Expr from;
+        private Expr to;
+        private final Stmt body;
 
-                    table.bind(param, argValue);
+        public ParSum(Identifier variable, Expr from, Expr to, Stmt body) {
+            this.variable = variable;
+            this.from = from;
+            this.to = to;
+            this.body = body;
+            this.label = "ParSum `parsum <var> from <expr> to <expr> { <stmt> }`";
+            addChild(variable);
+            addChild(from);
+            addChild(to);
+            addChild(body);
+        }
 
-                    // call body
-                    lambda.getBody().exec();
+        public Identifier getVariable() {
+            return variable;
+        }
 
-                    if(!returnVariables.isEmpty())
-                    {
-                        return returnVariables.pop();
-                    }
+        public Expr getFrom() {
+            return from;
+        }
 
-                }
+        public Expr getTo() {
+            return to;
+        }
+
+        public Stmt getBody() {
+            return body;
+        }
+
+        @Override
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (from == oldChild) from = (Expr) newChild;
+            if (to == oldChild) to = (Expr) newChild;
+        }
+
+        @Override
+        protected Value eval(Context cx) {
+            if (cx.error)
+                return Value.NONE;
+            final int first = from.evalNumber(cx);
+            final int last = to.evalNumber(cx);
+            if (cx.error)
+                return Value.NONE;
+            return Parallel.sum(cx, this, first, last);
+        }
+    }
+
+    // ===-----------------------------------------------------------------===
+    // `spawn f@x` evaluates f and x, and starts the call on a thread of its
+    // own (see Async). It gives a task, whose result `await` collects.
+    public static class Spawn extends Expr {
+        private final Call call;
+
+        public Spawn(Call call) {
+            this.call = call;
+            this.label = "Spawn `spawn <fun> @ <arg>`";
+            addChild(call);
+        }
+
+        public Call getCall() {
+            return call;
+        }
+
+        @Override
+        protected Value eval(Context cx) {
+            if (cx.error)
+                return Value.NONE;
+            final Lambda lambda = call.callee(cx);
+            final Value arg = call.getArg().eval(cx);
+            if (cx.error)
+                return Value.NONE;
+            return Value.of(Async.spawn(cx, lambda, arg));
+        }
+    }
+
+    // `await h` waits for the task h and gives what its call returned.
+    public static class Await extends Expr {
+        private Expr task;
+
+        public Await(Expr task) {
+            this.task = task;
+            this.label = "Await `await <expr>`";
+            addChild(task);
+        }
+
+        public Expr getTask() {
+            return task;
+        }
+
+        @Override
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (task == oldChild) task = (Expr) newChild;
+        }
+
+        @Override
+        protected Value eval(Context cx) {
+            final Value val = task.eval(cx);
+            if (cx.error)
+                return Value.NONE;
+            return Async.await(cx, val.getTask());
+        }
+    }
+
+    // `cancel h;` asks the task h to stop; see Async.
+    public static class Cancel extends Stmt {
+        private Expr task;
+
+        public Cancel(Expr task) {
+            this.task = task;
+            this.label = "Cancel `cancel <expr>`";
+            addChild(task);
+        }
+
+        public Expr getTask() {
+            return task;
+        }
+
+        @Override
+        protected void replaceChild(AST oldChild, AST newChild) {
+            super.replaceChild(oldChild, newChild);
+            if (task == oldChild) task = (Expr) newChild;
+        }
+
+        @Override
+        protected void execute(Context cx) {
+            final Value val = task.eval(cx);
+            if (!cx.error)
+                val.getTask().cancel();
+        }
+    }
+
+    // ===-----------------------------------------------------------------===
+    // the call stack keeps the frames of the callers of the running lambda
+    // on the heap. It bounds how deep calls may nest, so that running out
+    // of stack is a Brain error rather than a crash of the JVM.
+    //
+    // It also pools the activation records: each depth keeps the frame the
+    // last call at that depth ran in, and hands it to the next one. No
+    // frame outlives its call, so calls allocate none once the pool has
+    // grown as deep and as wide as the program needs.
+    public static class CallStack {
+        private Value[][] frames = new Value[64][];
+        private Value[][] records = new Value[64][];
+        private int depth = 0;
+        private final int maxDepth;
+        private final Context cx;
+
+        public CallStack(Context cx, int maxDepth) {
+            this.cx = cx;
+            this.maxDepth = maxDepth;
+        }
+
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        // saves the current frame before a call.
+        public void push() {
+            if (depth == maxDepth)
+                throw new BrainError("ERROR: Maximum call depth of " + maxDepth + " exceeded!");
+            if (depth == frames.length) {
+                frames = Arrays.copyOf(frames, depth * 2);
+                records = Arrays.copyOf(records, depth * 2);
             }
-            return new Value();
+            frames[depth++] = cx.frame;
+        }
+
+        // returns the activation record for the call just pushed, with
+        // (at least) `size` empty slots.
+        public Value[] record(int size) {
+            Value[] record = records[depth - 1];
+            if (record == null || record.length < size)
+                return records[depth - 1] = new Value[size];
+            Arrays.fill(record, 0, size, null);
+            return record;
+        }
+
+        // restores the caller's frame after a call.
+        public void pop() {
+            cx.frame = frames[--depth];
+            frames[depth] = null;
+        }
+
+        public void reset() {
+            Arrays.fill(frames, 0, depth, null);
+            depth = 0;
+        }
+    }
+
+    // ===-----------------------------------------------------------------===
+    // an error that abandons the running statement altogether.
+    public static class BrainError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public BrainError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    // a value of the wrong type where a number or a boolean was needed,
+    // found while running; the TypeChecker reports the definite ones before.
+    public static class TypeError extends BrainError {
+        private static final long serialVersionUID = 1L;
+
+        public TypeError(String message) {
+            super(message);
         }
     }
 
     // ===-----------------------------------------------------------------===
     // this gives the type of what's stored in the Value object.
     public enum Type {
-        NUM_T, BOOL_T, FUN_T, NONE_T;
+        NUM_T, BOOL_T, FUN_T, NONE_T, TASK_T;
     }
 
+    // a Value carries its payload in primitive fields, so numbers and
+    // booleans are never boxed. Values are immutable and can be shared:
+    // booleans, NONE and small numbers come from shared instances.
     public static class Value {
-        private Object val;
+        public static final Value NONE = new Value(Type.NONE_T, 0, false, null, null);
+        public static final Value TRUE = new Value(Type.BOOL_T, 0, true, null, null);
+        public static final Value FALSE = new Value(Type.BOOL_T, 0, false, null, null);
+        // cache of the numbers in [CACHE_LOW, CACHE_HIGH]
+        private static final int CACHE_LOW = -128;
+        private static final int CACHE_HIGH = 1023;
+        private static final Value[] SMALL = new Value[CACHE_HIGH - CACHE_LOW + 1];
+
+        static {
+            for (int i = 0; i < SMALL.length; i++)
+                SMALL[i] = new Value(Type.NUM_T, i + CACHE_LOW, false, null, null);
+        }
+
         private final Type type;
+        private final int number;
+        private final boolean bool;
+        private final Lambda lambda;
+        private final Async.Task task;
+
+        private Value(Type type, int number, boolean bool, Lambda lambda, Async.Task task) {
+            this.type = type;
+            this.number = number;
+            this.bool = bool;
+            this.lambda = lambda;
+            this.task = task;
+        }
 
-        public Value() {
-            type = Type.NONE_T;
+        public static Value of(int n) {
+            if (n >= CACHE_LOW && n <= CACHE_HIGH)
+                return SMALL[n - CACHE_LOW];
+            return new Value(Type.NUM_T, n, false, null, null);
         }
 
-        public Value(int n) {
-            val = n;
-            type = Type.NUM_T;
+        public static Value of(boolean b) {
+            return b ? TRUE : FALSE;
         }
 
-        public Value(boolean b) {
-            val = b;
-            type = Type.BOOL_T;
+        public static Value of(Lambda l) {
+            return new Value(Type.FUN_T, 0, false, l, null);
         }
 
-        public Value(Lambda l) {
-            val = l;
-            type = Type.FUN_T;
+        public static Value of(Async.Task t) {
+            return new Value(Type.TASK_T, 0, false, null, t);
         }
 
         public Type getType() {
@@ -792,32 +1956,45 @@ public class Main {
         }
 
         public int getNumber() {
-            return (int) val;
+            if (type != Type.NUM_T)
+                throw new TypeError("ERROR: expecting a number, but found " + this);
+            return number;
         }
 
         public boolean getBoolean() {
-            return (boolean) val;
+            if (type != Type.BOOL_T)
+                throw new TypeError("ERROR: expecting a boolean, but found " + this);
+            return bool;
         }
 
         public Lambda getLambda() {
-            return (Lambda) val;
+            return lambda;
         }
 
-        public void writeTo() {
-//            System.out.println(val);
+        public Async.Task getTask() {
+            if (type != Type.TASK_T)
+                throw new TypeError("ERROR: expecting a task, but found " + this);
+            return task;
+        }
+
+        public void writeTo(Output out) {
             switch (type) {
-                case NUM_T, BOOL_T -> System.out.println(val);
-                case FUN_T -> System.out.println("lambda expression");
-                case NONE_T -> System.out.println("Unset value!");
+                case NUM_T -> out.println(number);
+                case BOOL_T -> out.println(bool);
+                case FUN_T -> out.println("lambda expression");
+                case NONE_T -> out.println("Unset value!");
+                case TASK_T -> out.println("task");
             }
         }
 
         @Override
         public String toString() {
             return switch (type) {
-                case NUM_T, BOOL_T -> String.valueOf(val);
+                case NUM_T -> String.valueOf(number);
+                case BOOL_T -> String.valueOf(bool);
                 case FUN_T -> "lambda expression";
                 case NONE_T -> "Unset value!";
+                case TASK_T -> "task";
             };
         }
     }
@@ -825,148 +2002,482 @@ public class Main {
     // ===-----------------------------------------------------------------===
     // this class represents a simple global symbol table.
     public static class SymbolTable {
-        private final Map<String, Stack<Value>> binding = new HashMap<>();
-        private final Stack<Set<String>> scopeVariables = new Stack<>();
-
-        public SymbolTable() { }
+        // the bindings of one name in the open scopes: a stack of values,
+        // with the depth of the scope that bound it next to each value, so
+        // the innermost binding is on top. Its version changes whenever
+        // the binding the name has now does, outermost scope included.
+        // Call nodes guard their inline caches with it; stamps are never
+        // reused.
+        private static final class Binding {
+            private Value[] values = new Value[2];
+            private int[] depths = new int[2];
+            private int size = 0;
+            private int version = 0;
+        }
+
+        // the bindings of the names this table has seen, in pages of
+        // PAGE names indexed by symbol, made as names get used, so that a
+        // table costs what the names it binds take and a few bytes for
+        // each page of names it never touches.
+        private static final int PAGE_BITS = 6;
+        private static final int PAGE = 1 << PAGE_BITS;
+        private Binding[][] pages = new Binding[4][];
+        private int stamp = 0;
+        // the undo trail: every binding pushes its symbol here, and each
+        // open scope is a mark into the trail. Closing a scope unbinds the
+        // symbols above its mark, so entering and leaving a block allocates
+        // nothing and costs one step per binding made in it.
+        private int[] trail = new int[64];
+        private int trailSize = 0;
+        private int[] marks = new int[16];
+        private int depth = 0;
+        // the outermost scope, where names are bound while no scope is
+        // open. It is a persistent map (see Env), so a table can start out
+        // with the engine's prelude, or another table's bindings, without
+        // copying them, and what it binds there later is its own.
+        private Env globals;
+        // while the scope of a session is open (see openSessionScope()),
+        // the map also has the names bound in it, at depth 1, and `outer`
+        // is the map as it was before; otherwise session is 0.
+        private int session = 0;
+        private Env outer;
+        // where errors and diagnostics go
+        private final Context cx;
+
+        public SymbolTable(Context cx, Env globals) {
+            this.cx = cx;
+            this.globals = globals;
+        }
+
+        // the bindings of the name, or null if the table never had any.
+        private Binding find(int symbol) {
+            final int page = symbol >>> PAGE_BITS;
+            return page < pages.length && pages[page] != null ? pages[page][symbol & (PAGE - 1)] : null;
+        }
+
+        // the bindings of the name, made if need be.
+        private Binding binding(int symbol) {
+            final int page = symbol >>> PAGE_BITS;
+            if (page >= pages.length)
+                pages = Arrays.copyOf(pages, Math.max(pages.length * 2, page + 1));
+            if (pages[page] == null)
+                pages[page] = new Binding[PAGE];
+            Binding binding = pages[page][symbol & (PAGE - 1)];
+            if (binding == null)
+                binding = pages[page][symbol & (PAGE - 1)] = new Binding();
+            return binding;
+        }
 
         // returns the value bound to the given name.
-        Value lookup(final String name) {
-            // TODO: write the implementation  //done
-            //looks up the value
-            //if not null peek
-            //else throw error
-            Stack<Value> lookedAt = binding.get(name);
-
-            if(lookedAt != null){
-
-                return lookedAt.peek();
-            }
-           else {
-               error = true;
-               System.out.println("ERROR: No binding for variable `" + name + "` exists!");
-           }
-            return new Value();
+        Value lookup(final int symbol) {
+            final Binding binding = find(symbol);
+            if (binding != null && binding.size > 0)
+                return binding.values[binding.size - 1];
+            final Value global = globals.get(symbol);
+            if (global != null)
+                return global;
+            cx.error = true;
+            cx.out.println("ERROR: No binding for variable `" + cx.symbols.name(symbol) + "` exists!");
+            return Value.NONE;
         }
 
         // create a new name-value binding.
-        public void bind(final String name, Value val) {
-            // TODO: write the implementation           //done
-            //does it exist
-            //push value to new stack
-            //add to current scope
-            //check if not current scope but here
-            //add to current scope
-            //error is current and present
-            if(!binding.containsKey(name)){
-
-                binding.put(name, new Stack<>());
-
-                binding.get(name).push(val);
-
-                scopeVariables.peek().add(name);
+        public void bind(final int symbol, Value val) {
+            final Binding binding = binding(symbol);
+            if (depth == 0 ? globals.get(symbol) != null
+                    : binding.size > 0 && binding.depths[binding.size - 1] == depth) {
+                cx.out.println("ERROR: Variable " + cx.symbols.name(symbol) + " already bound!");
+                return;
             }
-            else if (!scopeVariables.peek().contains(name))
-            {
-                binding.get(name).push(val);
-
-                scopeVariables.peek().add(name);
+            binding.version = ++stamp;
+            if (depth == 0) {
+                globals = globals.with(symbol, val);
+                if (cx.diagnostics.debug)
+                    cx.diagnostics.binding(symbol, val);
+                return;
             }
-            else
-            {
-                System.out.println("ERROR: Variable " + name + " already bound!");
+            final int size = binding.size;
+            if (size == binding.values.length) {
+                binding.values = Arrays.copyOf(binding.values, size * 2);
+                binding.depths = Arrays.copyOf(binding.depths, size * 2);
+            }
+            binding.values[size] = val;
+            binding.depths[size] = depth;
+            binding.size = size + 1;
+            if (trailSize == trail.length)
+                trail = Arrays.copyOf(trail, trailSize * 2);
+            trail[trailSize++] = symbol;
+            if (depth == session)
+                globals = globals.with(symbol, val);
+            if (cx.diagnostics.debug)
+                cx.diagnostics.binding(symbol, val);
+        }
+
+        // the bindings of the outermost scope.
+        Env globals() {
+            return globals;
+        }
+
+        // the value every name has now, as an outermost scope, so that a
+        // parsum worker or a task sees what its spawner sees. The names
+        // bound in open scopes are those on the trail, so it costs one step
+        // per binding made in them; those of the outermost scope and the
+        // session's scope are in the map already, and shared.
+        Env snapshot() {
+            Env visible = globals;
+            final int from = session == 0 ? 0 : depth > session ? marks[session] : trailSize;
+            for (int i = from; i < trailSize; i++) {
+                final Binding binding = find(trail[i]);
+                visible = visible.with(trail[i], binding.values[binding.size - 1]);
             }
+            return visible;
         }
 
-        // re-defines the value bound to the given name.
-        void rebind(final String name, Value val) {
-            // TODO: write the implementation      //done
-            // does it exist
-            //then pop
-            //push new val and get
-            //else error
-            if(binding.containsKey(name))
-            {
-                binding.get(name).pop();
+        // returns the value bound to the given name, or null; quietly,
+        // unlike lookup().
+        Value peek(final int symbol) {
+            final Binding binding = find(symbol);
+            if (binding != null && binding.size > 0)
+                return binding.values[binding.size - 1];
+            return globals.get(symbol);
+        }
 
-                binding.get(name).push(val);
+        // re-defines the value bound to the given name.
+        void rebind(final int symbol, Value val) {
+            final Binding binding = find(symbol);
+            if (binding != null && binding.size > 0) {
+                binding.values[binding.size - 1] = val;
+                binding.version = ++stamp;
+                if (binding.depths[binding.size - 1] == session)
+                    globals = globals.with(symbol, val);
+            } else if (globals.get(symbol) != null) {
+                globals = globals.with(symbol, val);
+                binding(symbol).version = ++stamp;
+            } else
+                cx.out.println("ERROR: Cannot rebind `" + cx.symbols.name(symbol) + "` because it is not bound!");
+        }
+
+        // the version of the binding a name has now; 0 if it never had one.
+        int version(final int symbol) {
+            final Binding binding = find(symbol);
+            return binding != null ? binding.version : 0;
+        }
+
+        // the number of open scopes.
+        public int scopeDepth() {
+            return depth;
+        }
+
+        // drops the innermost binding of a name.
+        private void unbind(Binding binding) {
+            binding.values[--binding.size] = null;
+            binding.version = ++stamp;
+        }
+
+        // quietly drops every scope above the given depth, after a
+        // statement was abandoned halfway.
+        public void unwindTo(int depth) {
+            if (depth >= this.depth) return;
+            final int mark = marks[depth];
+            while (trailSize > mark)
+                unbind(find(trail[--trailSize]));
+            this.depth = depth;
+            if (depth < session)
+                endSession();
+        }
+
+        // opens a scope like openScope(). When it is the first one, it is
+        // the scope of a REPL or server session, or of a script, which
+        // binds its top-level names in it: they go into the outermost
+        // map as well, so that forks share them instead of copying them.
+        // Closing the scope puts the map back as it was when it opened.
+        public void openSessionScope() {
+            openScope();
+            if (depth == 1) {
+                session = 1;
+                outer = globals;
             }
-            else {
-              // error = true;
-               System.out.println("ERROR: Cannot rebind `" + name + "` because it is not bound!");
-           }
+        }
+
+        private void endSession() {
+            globals = outer;
+            outer = null;
+            session = 0;
         }
 
         public void openScope() {
-            // TODO: write the implementation           //done
-            System.out.println("INFO: Opening scope!");
-            // CODE HERE
-            scopeVariables.push(new HashSet<>());
+            if (cx.diagnostics.info)
+                cx.diagnostics.openScope();
+            if (depth == marks.length)
+                marks = Arrays.copyOf(marks, depth * 2);
+            marks[depth++] = trailSize;
         }
 
         public void closeScope() {
-            // TODO: write the implementation           //done
-            System.out.println("INFO: Closing scope!");
-            // CODE HERE
-            // Set<String> pop = scopeVariables.pop();
-
-            //remove current scope
-            //iter through variable
-            //add new value to top
-            //check if not empty
-            //pop if not
-            //print statment
-            //if empty remove
-            //the error if not binded correctly
-            Set<String> stackRemove = scopeVariables.pop();
-
-            for (String variable : stackRemove) {
-                Stack<Value> StackValuesToAdd = binding.get(variable);
-                if (StackValuesToAdd != null && !StackValuesToAdd.isEmpty()) {
-                    StackValuesToAdd.pop();
-                    System.out.println("Removing '" + variable + "' from scope.");
-
-                    if (StackValuesToAdd.isEmpty()) {
-                        binding.remove(variable);
-                    }
+            if (cx.diagnostics.info)
+                cx.diagnostics.closeScope();
+            final int mark = marks[--depth];
+            for (int i = mark; i < trailSize; i++) {
+                final int symbol = trail[i];
+                final Binding binding = find(symbol);
+                if (binding != null && binding.size > 0) {
+                    unbind(binding);
+                    if (cx.diagnostics.info)
+                        cx.diagnostics.removing(symbol);
                 } else {
-                    error = true;
-                    System.out.println("ERROR: Variable `" + variable + "` was not properly bound!");
+                    cx.error = true;
+                    cx.out.println("ERROR: Variable `" + cx.symbols.name(symbol) + "` was not properly bound!");
                 }
             }
+            trailSize = mark;
+            if (depth < session)
+                endSession();
         }
     }
 
-    public static void main(String[] args) throws IOException {
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+    private static final String USAGE = "usage: java Main [run <file>] [--time] [--in <file>] [--out <file>]"
+            + " [--prelude <file>] [--quiet | --diagnostics=off|info|debug] [--optimize | --no-optimize]"
+            + " [--vm] [--no-jit] [--jit-threshold=<n>] [--jit-dump=<dir>] [--memo | --no-memo]"
+            + " [--memo-size=<n>] [--max-depth=<n>] [--parallelism=<n>] [--max-tasks=<n>]"
+            + " [--serve=<port>|unix:<path>]";
+
+    // the value of a `--flag=<n>` argument, which must be a whole number
+    // of at least `min`.
+    private static int number(String arg, int min) {
+        final String flag = arg.substring(0, arg.indexOf('=') + 1);
+        final String value = arg.substring(flag.length());
+        final int n;
+        try {
+            n = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(flag + " takes a whole number, not `" + value + "`");
+        }
+        if (n < min)
+            throw new IllegalArgumentException(flag + " takes a number of at least " + min + ", not " + n);
+        return n;
+    }
+
+    // the level of a `--diagnostics=<level>` argument.
+    private static Diagnostics.Level level(String arg) {
+        final String value = arg.substring(14);
+        final Diagnostics.Level level = Diagnostics.Level.parse(value);
+        if (level == null)
+            throw new IllegalArgumentException("--diagnostics= takes off, info or debug, not `" + value + "`");
+        return level;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final Engine engine = new Engine();
+        // `run <file>` runs a script instead of the REPL
+        Path script = null;
+        boolean time = false;
+        Diagnostics.Level level = null;
+        Path output = null;
+        Path input = null;
+        Path prelude = null;
+        Boolean optimize = null;
+        Boolean memo = null;
+        String serve = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if ("run".equals(arg) && i + 1 < args.length) script = Path.of(args[++i]);
+                else if ("--time".equals(arg)) time = true;
+                else if ("--out".equals(arg) && i + 1 < args.length) output = Path.of(args[++i]);
+                else if ("--in".equals(arg) && i + 1 < args.length) input = Path.of(args[++i]);
+                else if ("--prelude".equals(arg) && i + 1 < args.length) prelude = Path.of(args[++i]);
+                else if ("--quiet".equals(arg)) level = Diagnostics.Level.OFF;
+                else if (arg.startsWith("--diagnostics=")) level = level(arg);
+                else if ("--optimize".equals(arg)) optimize = true;
+                else if ("--no-optimize".equals(arg)) optimize = false;
+                else if ("--vm".equals(arg)) engine.vm = true;
+                else if ("--no-jit".equals(arg)) engine.jit = false;
+                else if (arg.startsWith("--jit-threshold=")) engine.jitThreshold = number(arg, 0);
+                else if (arg.startsWith("--jit-dump=")) engine.jitDump = Path.of(arg.substring(11));
+                else if ("--memo".equals(arg)) memo = true;
+                else if ("--no-memo".equals(arg)) memo = false;
+                else if (arg.startsWith("--memo-size=")) engine.memoCapacity = number(arg, 1);
+                else if (arg.startsWith("--max-depth=")) engine.maxDepth = number(arg, 1);
+                else if (arg.startsWith("--serve=")) serve = arg.substring(8);
+                else if (arg.startsWith("--parallelism=")) engine.parallelism = number(arg, 1);
+                else if (arg.startsWith("--max-tasks=")) engine.maxTasks = number(arg, 1);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            System.err.println(USAGE);
+            return;
+        }
+        final Path file = script;
+        if (serve != null) {
+            // the server's sessions are REPLs that do not show scopes
+            engine.diagnostics = level != null ? level : Diagnostics.Level.OFF;
+            engine.optimize = optimize != null && optimize;
+            engine.memo = memo != null && memo;
+            if (prelude != null && !definePrelude(engine, prelude, Output.stdout(), Output.stderr()))
+                return;
+            try {
+                new Server(engine).serve(Server.address(serve));
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("ERROR: cannot serve on " + serve + ": " + e.getMessage());
+            }
+            return;
+        }
+        final boolean timed = time;
+        // scripts run without diagnostics unless asked for
+        engine.diagnostics = level != null ? level : file == null ? Diagnostics.Level.INFO : Diagnostics.Level.OFF;
+        // and are optimized and memoized unless told not to
+        engine.optimize = optimize != null ? optimize : file != null;
+        engine.memo = memo != null ? memo : file != null;
+        final Input console = Input.stdin();
+        final Output err = Output.stderr();
+        Input in = console;
+        Output out;
+        if (input != null) {
+            try {
+                in = Input.mapped(input);
+            } catch (IOException e) {
+                System.err.println("ERROR: cannot read " + input + ": " + e.getMessage());
+                return;
+            }
+        }
+        if (output != null) {
+            try {
+                out = Output.file(output);
+            } catch (IOException e) {
+                System.err.println("ERROR: cannot write " + output + ": " + e.getMessage());
+                return;
+            }
+        } else {
+            out = Output.stdout();
+        }
+        if (prelude != null && !definePrelude(engine, prelude, out, err)) {
+            out.close();
+            return;
+        }
+        final Context cx = engine.newContext(in, out, err);
+        // the read> prompt is only for someone typing at a terminal
+        cx.prompts = System.console() != null;
+        // the interpreter runs on a thread whose Java stack is big enough
+        // for the configured call depth.
+        final Runnable main = () -> {
+            try {
+                if (file == null) repl(cx, console);
+                else runScript(cx, file, timed);
+            } finally {
+                cx.out.flush();
+                cx.err.flush();
+            }
+        };
+        final Thread thread = new Thread(null, main, "brain", engine.stackSize());
+        thread.start();
+        thread.join();
+        out.close();
+    }
+
+    private static void repl(Context cx, Input console) {
         Lexer lexer;
         Parser parser;
         Stmt stmt = null;
         Stmt ast = null;
         String input = null;
-        Main.table.openScope();
+        final Output out = cx.out;
+        cx.table.openSessionScope();
         while (true) {
-            Main.error = false;
-            System.out.print("brain> ");
-            input = reader.readLine();
-            if ("quit".equals(input)) break;
+            cx.error = false;
+            if (cx.prompts)
+                out.print("brain> ");
+            out.flush();
+            input = console.readLine();
+            // the end of the input quits, too
+            if (input == null || "quit".equals(input)) break;
+            if (command(cx, input)) continue;
             if ("tree".equals(input)) {
                 if (ast != null)
-                    System.out.println(PrettyPrinter.printAST(ast));
+                    out.println(PrettyPrinter.printAST(ast));
+                for (String change : cx.optimizations)
+                    out.println("OPTIMIZED: " + change);
                 continue;
             }
-            lexer = new Lexer(input);
-            List<Token> tokens = lexer.getTokens();
-//            System.out.println(tokens);
-            parser = new Parser(tokens);
-            stmt = parser.init();
+            lexer = new Lexer(input, cx.symbols);
+            parser = new Parser(lexer);
+            stmt = cx.optimize(parser.init());
             if (ast == null) ast = stmt;
             else ast.addChild(stmt);
-            if (stmt == null && !Main.error) break;
+            if (stmt == null && !cx.error) break;
             else if (stmt != null)
-                stmt.exec();
+                cx.run(stmt);
+        }
+        cx.table.closeScope();
+        out.println("Good bye!");
+    }
+
+    // carries out one of the REPL's commands that switch the context's
+    // settings. Returns false if the line is not one of them.
+    static boolean command(Context cx, String input) {
+        if ("vm on".equals(input) || "vm off".equals(input)) {
+            cx.useVM = "vm on".equals(input);
+            return true;
+        }
+        if ("optimize on".equals(input) || "optimize off".equals(input)) {
+            cx.optimize = "optimize on".equals(input);
+            return true;
+        }
+        if ("memo on".equals(input) || "memo off".equals(input)) {
+            cx.memo = "memo on".equals(input);
+            return true;
+        }
+        if ("memo".equals(input)) {
+            cx.out.println("memo: " + cx.getMemoHits() + " hits, " + cx.getMemoMisses() + " misses");
+            return true;
+        }
+        if ("diagnostics".equals(input) || input.startsWith("diagnostics ")) {
+            final Diagnostics.Level level = Diagnostics.Level.parse(input.substring(11).trim());
+            if (level != null)
+                cx.diagnostics.setLevel(level);
+            else
+                cx.printError("ERROR: usage: diagnostics off|info|debug");
+            return true;
+        }
+        return false;
+    }
+
+    // runs the file as the engine's prelude. Returns false if it could not.
+    private static boolean definePrelude(Engine engine, Path file, Output out, Output err) {
+        try {
+            return engine.definePrelude(MappedSource.open(file), out, err);
+        } catch (IOException e) {
+            System.err.println("ERROR: cannot read " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // runs a whole script: the file is mapped into memory, lexed and parsed
+    // in one go, and then the context runs it.
+    private static void runScript(Context cx, Path file, boolean time) {
+        final long start = System.nanoTime();
+        cx.prompts = false;
+        final List<Stmt> program;
+        try {
+            program = new Parser(new Lexer(MappedSource.open(file), cx.symbols)).program();
+        } catch (IOException e) {
+            cx.printError("ERROR: cannot read " + file + ": " + e.getMessage());
+            return;
+        } catch (Error e) {
+            cx.printError("ERROR: " + e.getMessage());
+            return;
+        }
+        final int statements = program.size();
+        final long parsed = System.nanoTime();
+        if (!cx.run(program))
+            return;
+        if (time) {
+            // after what the script printed, through the same sink as its errors
+            cx.out.flush();
+            cx.err.println(String.format("parsed %d statements in %d ms (%d optimizations), ran them in %d ms"
+                            + " (%d memo hits, %d misses)",
+                    statements, (parsed - start) / 1_000_000, cx.optimizations.size(),
+                    (System.nanoTime() - parsed) / 1_000_000, cx.getMemoHits(), cx.getMemoMisses()));
+            cx.err.flush();
         }
-        Main.table.closeScope();
-        System.out.println("Good bye!");
     }
 }
\ No newline at end of file
@@ -0,0 +1,194 @@
+import java.util.Arrays;
+
+// a memo table remembers what a pure lambda returned for each argument, so
+// that calling it again with a number or a boolean it has seen before
+// takes the result instead of running the body. Call.invoke() consults it
+// on every tier.
+//
+// A lambda is pure when its body does not write, read, declare a lambda,
+// use tasks or assign to anything but its own locals (see Resolver), and
+// every other name it uses is the callee of a call. All of those calls
+// must name the same function, and the memo table is only used while that
+// name is bound to the lambda itself, so that it is a recursion and
+// nothing else.
+// The version of the binding (see SymbolTable) tells when it has changed.
+//
+// The table holds at most `capacity` results (see Engine). When it is
+// full it evicts by CLOCK: a hand sweeps the entries, sparing (once) those
+// that were hit since it last passed them. The Context running the calls
+// counts the hits and misses.
+public final class Memo {
+    // what key() returns for an argument that is neither a number nor a boolean
+    public static final long NO_KEY = Long.MIN_VALUE;
+
+    private final int capacity;
+
+    // the callee every call in the body names, or -1 if it makes none.
+    private final int symbol;
+    // the version of that binding the results were made with, and whether
+    // it was the lambda itself then.
+    private int version = -1;
+    private boolean recursive = false;
+
+    // the entries: an encoded argument, its result and whether it was hit
+    // since the hand last passed it.
+    private long[] keys = new long[16];
+    private Main.Value[] results = new Main.Value[16];
+    private boolean[] referenced = new boolean[16];
+    private int size = 0;
+    private int hand = 0;
+    // an open addressing index from keys to entries, which are stored one
+    // up, so that 0 is free; it is kept at most half full.
+    private int[] index = new int[32];
+
+    private Memo(int symbol, int capacity) {
+        this.symbol = symbol;
+        this.capacity = capacity;
+    }
+
+    // returns a memo table for the lambda if it is pure, or null if not.
+    public static Memo of(Main.Lambda lambda, int capacity) {
+        final int[] callee = {-1};
+        return isPure(lambda.getBody(), callee) ? new Memo(callee[0], capacity) : null;
+    }
+
+    // ===-----------------------------------------------------------------===
+    // purity
+
+    private static boolean isPure(Main.AST node, int[] callee) {
+        if (node == null)
+            return true;
+        if (node instanceof Main.Write || node instanceof Main.Read || node instanceof Main.Lambda
+                || node instanceof Main.Spawn || node instanceof Main.Await || node instanceof Main.Cancel)
+            return false;
+        if (node instanceof Main.Call) {
+            final Main.Expr funExpr = ((Main.Call) node).getFunExpr();
+            if (!(funExpr instanceof Main.Identifier) || ((Main.Identifier) funExpr).isLocal())
+                return false;
+            final int symbol = ((Main.Identifier) funExpr).getSymbol();
+            if (callee[0] >= 0 && callee[0] != symbol)
+                return false;
+            callee[0] = symbol;
+            return isPure(((Main.Call) node).getArg(), callee);
+        }
+        // every other name, the targets of auto and := included, must be local
+        if (node instanceof Main.Identifier)
+            return ((Main.Identifier) node).isLocal();
+        for (Main.AST child : node.getChildren())
+            if (!isPure(child, callee))
+                return false;
+        return true;
+    }
+
+    // ===-----------------------------------------------------------------===
+    // the table
+
+    // whether the results are still those of the given lambda, that is,
+    // whether its calls still reach itself in the given table. They are
+    // dropped when not.
+    public boolean isCurrent(Main.SymbolTable table, Main.Lambda lambda) {
+        if (symbol < 0)
+            return true;
+        final int version = table.version(symbol);
+        if (version != this.version) {
+            this.version = version;
+            final Main.Value callee = table.peek(symbol);
+            recursive = callee != null && callee.getType() == Main.Type.FUN_T && callee.getLambda() == lambda;
+            clear();
+        }
+        return recursive;
+    }
+
+    // the key of an argument; numbers and booleans never share one. Other
+    // arguments have none, and their calls are not remembered.
+    public static long key(Main.Value arg) {
+        return switch (arg.getType()) {
+            case NUM_T -> arg.getNumber();
+            case BOOL_T -> arg.getBoolean() ? 1L << 32 : 1L << 33;
+            default -> NO_KEY;
+        };
+    }
+
+    // returns the result remembered for the key, or null.
+    public Main.Value get(long key) {
+        final int mask = index.length - 1;
+        for (int i = hash(key) & mask; index[i] != 0; i = (i + 1) & mask) {
+            final int entry = index[i] - 1;
+            if (keys[entry] == key) {
+                referenced[entry] = true;
+                return results[entry];
+            }
+        }
+        return null;
+    }
+
+    // remembers the result for a key that get() did not find.
+    public void put(long key, Main.Value result) {
+        final int entry;
+        if (size < capacity) {
+            if (size == keys.length)
+                grow();
+            entry = size++;
+        } else {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % size;
+            }
+            entry = hand;
+            hand = (hand + 1) % size;
+            remove(entry);
+        }
+        keys[entry] = key;
+        results[entry] = result;
+        referenced[entry] = false;
+        insert(entry);
+    }
+
+    private void clear() {
+        Arrays.fill(results, 0, size, null);
+        Arrays.fill(index, 0);
+        size = 0;
+        hand = 0;
+    }
+
+    private void grow() {
+        final int length = Math.min(keys.length * 2, capacity);
+        keys = Arrays.copyOf(keys, length);
+        results = Arrays.copyOf(results, length);
+        referenced = Arrays.copyOf(referenced, length);
+        index = new int[Integer.highestOneBit(length) * 4];
+        for (int entry = 0; entry < size; entry++)
+            insert(entry);
+    }
+
+    private void insert(int entry) {
+        final int mask = index.length - 1;
+        int i = hash(keys[entry]) & mask;
+        while (index[i] != 0)
+            i = (i + 1) & mask;
+        index[i] = entry + 1;
+    }
+
+    // takes an entry out of the index, shifting back the entries after it
+    // that would no longer be found past the hole.
+    private void remove(int entry) {
+        final int mask = index.length - 1;
+        int hole = hash(keys[entry]) & mask;
+        while (index[hole] != entry + 1)
+            hole = (hole + 1) & mask;
+        for (int i = (hole + 1) & mask; index[i] != 0; i = (i + 1) & mask) {
+            final int home = hash(keys[index[i] - 1]) & mask;
+            // move it unless its home lies cyclically in (hole, i]
+            if (hole <= i ? home <= hole || home > i : home <= hole && home > i) {
+                index[hole] = index[i];
+                hole = i;
+            }
+        }
+        index[hole] = 0;
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,228 @@
+import java.util.List;
+
+// the optimizer is a static pass that runs between Parser.init() and
+// exec(), before the Resolver. It folds subtrees whose operands are all
+// literals into a single literal, and removes the code that can never
+// run: the branch of an `if` whose condition is a literal, and a `while`
+// loop whose condition is `false`. A taken branch keeps its Block, so it
+// still opens and closes its scope.
+//
+// Only operations that cannot fail are folded. Operands of the wrong type
+// are left for exec() to report, and so is a division by a literal zero,
+// which stays an error when it runs. Every change is described in the list
+// given to optimize(), which the REPL shows with the tree.
+public final class Optimizer {
+    private final List<String> changes;
+
+    private Optimizer(List<String> changes) {
+        this.changes = changes;
+    }
+
+    // optimizes a sequence of statements, adding what it changed to the
+    // list, and returns the new first statement of the sequence.
+    public static Main.Stmt optimize(Main.Stmt stmt, List<String> changes) {
+        return new Optimizer(changes).sequence(stmt);
+    }
+
+    // ===-----------------------------------------------------------------===
+    // statements
+
+    private Main.Stmt sequence(Main.Stmt first) {
+        Main.Stmt head = null;
+        Main.Stmt tail = null;
+        // walk the sequence in a loop; only nesting recurses
+        for (Main.Stmt stmt = first; stmt != null; ) {
+            final Main.Stmt next = stmt.getNext();
+            final Main.Stmt kept = statement(stmt);
+            if (kept != null) {
+                if (tail == null) head = kept;
+                else if (tail.getNext() != kept) tail.setNext(kept);
+                tail = kept;
+            }
+            stmt = next;
+        }
+        // a sequence always ends in a NullStmt, which is never removed
+        return head;
+    }
+
+    // returns the statement to run in place of this one, or null for none
+    private Main.Stmt statement(Main.Stmt stmt) {
+        if (stmt instanceof Main.Block) {
+            block(stmt);
+        } else if (stmt instanceof Main.IfStmt) {
+            final Main.IfStmt ifStmt = (Main.IfStmt) stmt;
+            ifStmt.setCondition(expr(ifStmt.getCondition()));
+            block(ifStmt.getIfBlock());
+            block(ifStmt.getElseBlock());
+            if (ifStmt.getCondition() instanceof Main.BoolExpr) {
+                final boolean taken = ((Main.BoolExpr) ifStmt.getCondition()).getValue();
+                final Main.Stmt branch = taken ? ifStmt.getIfBlock() : ifStmt.getElseBlock();
+                if (branch == null) {
+                    changes.add("removed an if whose condition is always " + taken);
+                    return null;
+                }
+                changes.add("replaced an if by its " + (taken ? "if" : "else") + " block");
+                return branch;
+            }
+        } else if (stmt instanceof Main.WhileStmt) {
+            final Main.WhileStmt whileStmt = (Main.WhileStmt) stmt;
+            whileStmt.setCondition(expr(whileStmt.getCondition()));
+            block(whileStmt.getBody());
+            if (whileStmt.getCondition() instanceof Main.BoolExpr
+                    && !((Main.BoolExpr) whileStmt.getCondition()).getValue()) {
+                changes.add("removed a while whose condition is always false");
+                return null;
+            }
+        } else if (stmt instanceof Main.AutoStmt) {
+            final Main.AutoStmt auto = (Main.AutoStmt) stmt;
+            auto.setRhs(expr(auto.getRhs()));
+        } else if (stmt instanceof Main.AssignStmt) {
+            final Main.AssignStmt assign = (Main.AssignStmt) stmt;
+            assign.setRhs(expr(assign.getRhs()));
+        } else if (stmt instanceof Main.Write) {
+            final Main.Write write = (Main.Write) stmt;
+            write.setValue(expr(write.getValue()));
+        } else if (stmt instanceof Main.ExprStmt) {
+            final Main.ExprStmt exprStmt = (Main.ExprStmt) stmt;
+            exprStmt.setValue(expr(exprStmt.getValue()));
+        }
+        return stmt;
+    }
+
+    private void block(Main.Stmt stmt) {
+        if (stmt instanceof Main.Block) {
+            final Main.Block block = (Main.Block) stmt;
+            block.setBody(sequence(block.getBody()));
+        }
+    }
+
+    // ===-----------------------------------------------------------------===
+    // expressions
+
+    // folds an expression, and reports it when it became a literal
+    private Main.Expr expr(Main.Expr expr) {
+        final Main.Expr folded = fold(expr);
+        report(expr, folded);
+        return folded;
+    }
+
+    // reports only the outermost subtree that folded, not each of its parts
+    private void report(Main.Expr expr, Main.Expr folded) {
+        if (folded != expr && isLiteral(folded))
+            changes.add("folded " + expr.getClass().getSimpleName() + " into " + folded.getLabel());
+    }
+
+    private Main.Expr fold(Main.Expr expr) {
+        if (expr instanceof Main.ArithmeticOp) {
+            final Main.ArithmeticOp op = (Main.ArithmeticOp) expr;
+            final Main.Expr left = fold(op.getLeft());
+            final Main.Expr right = fold(op.getRight());
+            if (left instanceof Main.Number && right instanceof Main.Number) {
+                final int l = ((Main.Number) left).getValue();
+                final int r = ((Main.Number) right).getValue();
+                if (op.getOp() != Main.Oper.DIV || r != 0)
+                    return new Main.Number(arithmetic(op.getOp(), l, r));
+                changes.add("kept a division by zero, which fails when it runs");
+            }
+            report(op.getLeft(), left);
+            report(op.getRight(), right);
+            if (left == op.getLeft() && right == op.getRight()) return expr;
+            return new Main.ArithmeticOp(left, right, op.getOp());
+        }
+        if (expr instanceof Main.ComparisonOp) {
+            final Main.ComparisonOp op = (Main.ComparisonOp) expr;
+            final Main.Expr left = fold(op.getLeft());
+            final Main.Expr right = fold(op.getRight());
+            if (left instanceof Main.Number && right instanceof Main.Number)
+                return new Main.BoolExpr(comparison(op.getOp(),
+                        ((Main.Number) left).getValue(), ((Main.Number) right).getValue()));
+            report(op.getLeft(), left);
+            report(op.getRight(), right);
+            if (left == op.getLeft() && right == op.getRight()) return expr;
+            return new Main.ComparisonOp(left, right, op.getOp());
+        }
+        if (expr instanceof Main.BooleanOp) {
+            final Main.BooleanOp op = (Main.BooleanOp) expr;
+            final boolean and = op.getOp() == Main.Oper.AND;
+            final Main.Expr left = fold(op.getLeft());
+            // `false and x` and `true or x` never run x
+            if (left instanceof Main.BoolExpr && ((Main.BoolExpr) left).getValue() != and)
+                return new Main.BoolExpr(!and);
+            final Main.Expr right = fold(op.getRight());
+            if (left instanceof Main.BoolExpr && right instanceof Main.BoolExpr)
+                return new Main.BoolExpr(((Main.BoolExpr) right).getValue());
+            report(op.getLeft(), left);
+            report(op.getRight(), right);
+            if (left == op.getLeft() && right == op.getRight()) return expr;
+            return and ? new Main.AndOp(left, right) : new Main.OrOp(left, right);
+        }
+        if (expr instanceof Main.NegationOp) {
+            final Main.NegationOp op = (Main.NegationOp) expr;
+            final Main.Expr right = fold(op.getRight());
+            if (right instanceof Main.Number)
+                return new Main.Number(-((Main.Number) right).getValue());
+            report(op.getRight(), right);
+            return right == op.getRight() ? expr : new Main.NegationOp(right);
+        }
+        if (expr instanceof Main.NotOp) {
+            final Main.NotOp op = (Main.NotOp) expr;
+            final Main.Expr right = fold(op.getRight());
+            if (right instanceof Main.BoolExpr)
+                return new Main.BoolExpr(!((Main.BoolExpr) right).getValue());
+            report(op.getRight(), right);
+            return right == op.getRight() ? expr : new Main.NotOp(right);
+        }
+        if (expr instanceof Main.Call) {
+            final Main.Call call = (Main.Call) expr;
+            final Main.Expr funExpr = expr(call.getFunExpr());
+            final Main.Expr arg = expr(call.getArg());
+            if (funExpr == call.getFunExpr() && arg == call.getArg()) return expr;
+            return new Main.Call(funExpr, arg);
+        }
+        if (expr instanceof Main.ReturnExpr) {
+            final Main.ReturnExpr ret = (Main.ReturnExpr) expr;
+            final Main.Expr value = expr(ret.getValue());
+            return value == ret.getValue() ? expr : new Main.ReturnExpr(value);
+        }
+        if (expr instanceof Main.Lambda)
+            block(((Main.Lambda) expr).getBody());
+        if (expr instanceof Main.ParSum) {
+            final Main.ParSum sum = (Main.ParSum) expr;
+            final Main.Expr from = expr(sum.getFrom());
+            final Main.Expr to = expr(sum.getTo());
+            block(sum.getBody());
+            if (from == sum.getFrom() && to == sum.getTo()) return expr;
+            return new Main.ParSum(sum.getVariable(), from, to, sum.getBody());
+        }
+        return expr;
+    }
+
+    private static boolean isLiteral(Main.Expr expr) {
+        return expr instanceof Main.Number || expr instanceof Main.BoolExpr;
+    }
+
+    // the same int arithmetic as ArithmeticOp, overflow included
+    private static int arithmetic(Main.Oper op, int l, int r) {
+        switch (op) {
+            case ADD:
+                return l + r;
+            case SUB:
+                return l - r;
+            case MUL:
+                return l * r;
+            default:
+                return l / r;
+        }
+    }
+
+    private static boolean comparison(Main.Oper op, int l, int r) {
+        return switch (op) {
+            case LT -> l < r;
+            case GT -> l > r;
+            case LE -> l <= r;
+            case GE -> l >= r;
+            case EQ -> l == r;
+            default -> l != r;
+        };
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// the sink for everything the interpreter prints: the output of write,
+// the prompts and the diagnostics. Text is gathered in a large buffer
+// and handed to the channel only when the buffer is full or flush() is
+// called, which the interpreter does at REPL prompts, before read waits
+// for input, before an error goes to stderr, and at exit. Numbers are
+// encoded into the buffer digit by digit, without making a String.
+//
+// Like System.out, an Output never throws: once its channel fails,
+// further output is dropped.
+public final class Output {
+    private static final int SIZE = 1 << 16;
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    private final WritableByteChannel channel;
+    private final byte[] bytes;
+    private final ByteBuffer buffer;
+    private int size = 0;
+    private boolean failed = false;
+
+    public Output(WritableByteChannel channel) {
+        this(channel, SIZE);
+    }
+
+    // an Output with a smaller buffer, for when there are many of them
+    public Output(WritableByteChannel channel, int size) {
+        this.channel = channel;
+        this.bytes = new byte[Math.max(size, 64)];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    // the process's standard output
+    public static Output stdout() {
+        return new Output(new FileOutputStream(FileDescriptor.out).getChannel());
+    }
+
+    // the process's standard error
+    public static Output stderr() {
+        return new Output(new FileOutputStream(FileDescriptor.err).getChannel());
+    }
+
+    // a file, created or truncated
+    public static Output file(Path path) throws IOException {
+        return new Output(FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    public void print(String s) {
+        final int length = s.length();
+        if (length > bytes.length) {
+            write(s.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                // rare; start over on the encoded bytes
+                size -= i;
+                write(s.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            bytes[size++] = (byte) c;
+        }
+    }
+
+    public void print(int n) {
+        ensure(11);
+        // digits are made from the negative value, which also covers MIN_VALUE
+        if (n < 0) bytes[size++] = '-';
+        else n = -n;
+        final int start = size;
+        do {
+            bytes[size++] = (byte) ('0' - n % 10);
+            n /= 10;
+        } while (n != 0);
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            final byte b = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = b;
+        }
+    }
+
+    public void print(boolean b) {
+        print(b ? "true" : "false");
+    }
+
+    public void println() {
+        ensure(NEWLINE.length);
+        for (byte b : NEWLINE)
+            bytes[size++] = b;
+    }
+
+    public void println(String s) {
+        print(s);
+        println();
+    }
+
+    public void println(int n) {
+        print(n);
+        println();
+    }
+
+    public void println(boolean b) {
+        print(b);
+        println();
+    }
+
+    void write(byte[] data) {
+        for (int offset = 0; offset < data.length; ) {
+            ensure(1);
+            final int n = Math.min(data.length - offset, bytes.length - size);
+            System.arraycopy(data, offset, bytes, size, n);
+            size += n;
+            offset += n;
+        }
+    }
+
+    // makes room for n more bytes
+    private void ensure(int n) {
+        if (size + n > bytes.length)
+            flush();
+    }
+
+    public void flush() {
+        if (size == 0) return;
+        buffer.clear().limit(size);
+        size = 0;
+        if (failed) return;
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+
+    public void close() {
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.RecursiveTask;
+
+// runs a parsum on the engine's fork/join pool. The range is halved until
+// the pieces are small enough for every worker to get several, and each
+// piece runs in a Context of its own: it starts with a copy of the frame
+// the parsum was evaluated in and with the bindings visible there, so its
+// declarations and any rebinding a called lambda makes stay its own. The
+// sums of the pieces are added up as the halves are joined, which gives
+// the same total in any order, since int addition wraps.
+//
+// What a piece prints is kept until the pieces are joined, and printed in
+// the order of the range, so a parsum prints what a loop would. A piece
+// stops at its first error; what the pieces after it printed is dropped
+// and the error ends the parsum, as it would have ended the loop.
+//
+// The pieces run the same nodes at the same time, so the contexts of the
+// workers never change a tree: nodes do not specialize themselves and
+// calls do not cache their callee there (see Context.mayRewrite()), and
+// the spawner is waiting for the parsum meanwhile. What a lambda builds
+// once on its first calls, the VM's chunk and the Jit's code, is handed
+// on through volatile fields, and the Jit counts calls atomically. Memo
+// tables are not safe to share, so workers do not use them, and workers
+// have no input: read gives them an unset value. Their threads have the JVM's default stack, so calls
+// in a body nest less deeply than on the interpreter's own thread.
+public final class Parallel {
+    // pieces per worker, so that uneven pieces even out
+    private static final int PIECES = 8;
+    // the buffers of a piece's output
+    private static final int BUFFER = 1 << 10;
+
+    private Parallel() { }
+
+    // the sum of what the body of the parsum returns for each number from
+    // first to last. Errors of a piece are reported here, after what was
+    // printed before them.
+    static Main.Value sum(Context cx, Main.ParSum parSum, int first, int last) {
+        if (first > last)
+            return Main.Value.of(0);
+        final Engine engine = cx.getEngine();
+        final long count = (long) last - first + 1;
+        final long grain = Math.max(1, count / ((long) engine.parallelism * PIECES));
+        final Piece piece = engine.pool().invoke(new Task(cx, parSum, cx.frame, first, last, grain));
+        cx.out.write(piece.out);
+        if (piece.err.length > 0) {
+            cx.out.flush();
+            cx.err.write(piece.err);
+            cx.err.flush();
+        }
+        if (piece.error != null)
+            throw piece.error;
+        if (piece.failed) {
+            cx.error = true;
+            return Main.Value.NONE;
+        }
+        return Main.Value.of(piece.sum);
+    }
+
+    // what running part of the range gave.
+    private static final class Piece {
+        private final int sum;
+        private final byte[] out;
+        private final byte[] err;
+        // set when the piece stopped at an error
+        private final boolean failed;
+        private final Main.BrainError error;
+
+        private Piece(int sum, byte[] out, byte[] err, boolean failed, Main.BrainError error) {
+            this.sum = sum;
+            this.out = out;
+            this.err = err;
+            this.failed = failed;
+            this.error = error;
+        }
+
+        // this piece followed by the one after it
+        private Piece then(Piece next) {
+            if (failed)
+                return this;
+            return new Piece(sum + next.sum, concat(out, next.out), concat(err, next.err),
+                    next.failed, next.error);
+        }
+
+        private static byte[] concat(byte[] a, byte[] b) {
+            if (a.length == 0) return b;
+            if (b.length == 0) return a;
+            final byte[] both = new byte[a.length + b.length];
+            System.arraycopy(a, 0, both, 0, a.length);
+            System.arraycopy(b, 0, both, a.length, b.length);
+            return both;
+        }
+    }
+
+    // a RecursiveTask is serializable, but a Task is never serialized
+    @SuppressWarnings("serial")
+    private static final class Task extends RecursiveTask<Piece> {
+        private final Context cx;
+        private final Main.ParSum parSum;
+        private final Main.Value[] frame;
+        private final int first;
+        private final int last;
+        private final long grain;
+
+        private Task(Context cx, Main.ParSum parSum, Main.Value[] frame, int first, int last, long grain) {
+            this.cx = cx;
+            this.parSum = parSum;
+            this.frame = frame;
+            this.first = first;
+            this.last = last;
+            this.grain = grain;
+        }
+
+        @Override
+        protected Piece compute() {
+            if ((long) last - first + 1 <= grain)
+                return run();
+            final int middle = (int) (((long) first + last) >> 1);
+            final Task left = new Task(cx, parSum, frame, first, middle, grain);
+            final Task right = new Task(cx, parSum, frame, middle + 1, last, grain);
+            right.fork();
+            final Piece piece = left.compute();
+            return piece.then(right.join());
+        }
+
+        // runs the body for every number of this piece, in a context of its own.
+        private Piece run() {
+            final ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+            final ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+            final Output out = new Output(Channels.newChannel(outBytes), BUFFER);
+            final Output err = new Output(Channels.newChannel(errBytes), BUFFER);
+            final Context wx = cx.fork(
+                    new Input(Channels.newChannel(InputStream.nullInputStream()), BUFFER), out, err);
+            wx.frame = frame.clone();
+
+            final Main.Identifier variable = parSum.getVariable();
+            final Main.Stmt body = parSum.getBody();
+            int sum = 0;
+            Main.BrainError error = null;
+            try {
+                for (long i = first; i <= last && !wx.error; i++) {
+                    // a parsum in a cancelled task stops between numbers
+                    cx.stopIfCancelled();
+                    final Main.Value value = Main.Value.of((int) i);
+                    // a variable that a callee or nested lambda may see lives in the table
+                    if (variable.isResolved()) {
+                        wx.frame[variable.getSlot()] = value;
+                    } else {
+                        wx.table.openScope();
+                        wx.table.bind(variable.getSymbol(), value);
+                    }
+                    final int returned = wx.returnVariables.size();
+                    body.exec(wx);
+                    if (!variable.isResolved())
+                        wx.table.closeScope();
+                    if (wx.error)
+                        break;
+                    final Main.Value result = wx.returnVariables.size() > returned
+                            ? wx.returnVariables.peek() : Main.Value.NONE;
+                    wx.returnVariables.setSize(returned);
+                    sum += result.getNumber();
+                }
+            } catch (Main.BrainError e) {
+                error = e;
+            } catch (StackOverflowError e) {
+                error = new Main.BrainError("ERROR: Call stack overflow!");
+            }
+            out.flush();
+            err.flush();
+            return new Piece(sum, outBytes.toByteArray(), errBytes.toByteArray(),
+                    wx.error || error != null, error);
+        }
+    }
+}
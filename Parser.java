@@ -1,40 +1,59 @@
+import java.util.ArrayList;
 import java.util.List;
 
 public class Parser {
     // from where do we get the tokens
-    private final List<Token> input;
-    // the current lookahead token
-    private Token lookahead;
-    private int p = 0;
+    private final TokenStream tokens;
+    // the type of the current lookahead token
+    private int lookahead;
 
-    public Parser(List<Token> input) {
-        this.input = input;
-        consume();
+    public Parser(Lexer lexer) {
+        this.tokens = new TokenStream(lexer);
+        this.lookahead = tokens.type(0);
     }
 
     // lookahead token type matches x, consume & return else error.
     public void match(int x) {
-        if (lookahead.type == x) consume();
-        else throw new Error("expecting " + Lexer.getTokenName(x) + ", but found " + lookahead);
+        if (lookahead == x) consume();
+        else throw new Error("expecting " + Lexer.getTokenName(x) + ", but found " + tokens.describe());
     }
 
     public void consume() {
-        if (p >= input.size() - 1) lookahead = input.get(input.size() - 1);
-        else lookahead = input.get(p);
-        ++p;
+        tokens.consume();
+        lookahead = tokens.type(0);
     }
 
-    public Token peek(int LA) {
-        if (p + LA - 1 >= input.size()) return input.get(p - 1);
-        return input.get(p + LA - 1);
+    // the name token that is the lookahead, as an Identifier
+    private Main.Identifier identifier() {
+        return new Main.Identifier(tokens.symbol(0), tokens.name(0));
+    }
+
+    // the type of the token LA positions after the lookahead
+    public int peek(int LA) {
+        return tokens.type(LA);
     }
 
     public Main.Stmt init() {
         return stmt();
     }
 
+    // parses a whole program, up to the end of the input. Each top-level
+    // statement is returned on its own, like the lines of the REPL.
+    public List<Main.Stmt> program() {
+        final List<Main.Stmt> program = new ArrayList<>();
+        while (true) {
+            // the REPL ignores whatever follows a statement on its line,
+            // so scripts may have stray semicolons, e.g. after blocks.
+            while (lookahead == Lexer.SEMI)
+                match(Lexer.SEMI);
+            if (lookahead == Lexer.EOF_TYPE)
+                return program;
+            program.add(stmt());
+        }
+    }
+
     public Main.Block block() {
-        if (lookahead.type == Lexer.LC) {
+        if (lookahead == Lexer.LC) {
             match(Lexer.LC);
             Main.Block block = new Main.Block(stmtList());
             match(Lexer.RC);
@@ -44,64 +63,77 @@ public class Parser {
     }
 
     public Main.Stmt stmtList() {
-        Main.Stmt next = new Main.NullStmt();
-        while (lookahead.type == Lexer.AUTO ||
-                lookahead.type == Lexer.IDENT ||
-                lookahead.type == Lexer.WRITE ||
-                lookahead.type == Lexer.RETURN ||
-                lookahead.type == Lexer.IF ||
-                lookahead.type == Lexer.IF_ELSE ||
-                lookahead.type == Lexer.WHILE ||
-                lookahead.type == Lexer.LC) {
-            next = Main.Stmt.append(next, stmt());
+        Main.Stmt first = new Main.NullStmt();
+        Main.Stmt last = null;
+        while (lookahead == Lexer.AUTO ||
+                lookahead == Lexer.IDENT ||
+                lookahead == Lexer.WRITE ||
+                lookahead == Lexer.RETURN ||
+                lookahead == Lexer.IF ||
+                lookahead == Lexer.IF_ELSE ||
+                lookahead == Lexer.WHILE ||
+                lookahead == Lexer.CANCEL ||
+                lookahead == Lexer.LC) {
+            // link onto the last statement, instead of walking the
+            // whole list with append() for every statement
+            final Main.Stmt stmt = stmt();
+            if (last == null) first = stmt;
+            else last.setNext(stmt);
+            last = stmt;
         }
-        return next;
+        return first;
     }
 
     public Main.Stmt stmt() {
-        if (lookahead.type == Lexer.AUTO) {
+        if (lookahead == Lexer.AUTO) {
             match(Lexer.AUTO);
-            Main.Identifier variable = new Main.Identifier(lookahead.text);
+            Main.Identifier variable = identifier();
             match(Lexer.IDENT);
             match(Lexer.ASN);
             Main.Expr expr = expr();
             match(Lexer.SEMI);
             return new Main.AutoStmt(variable, expr);
         }
-        if (lookahead.type == Lexer.IDENT && peek(1).type != Lexer.FUNARG) {
-            Main.Identifier variable = new Main.Identifier(lookahead.text);
+        if (lookahead == Lexer.IDENT && peek(1) != Lexer.FUNARG) {
+            Main.Identifier variable = identifier();
             match(Lexer.IDENT);
             match(Lexer.ASN);
             Main.Expr expr = expr();
             match(Lexer.SEMI);
             return new Main.AssignStmt(variable, expr);
         }
-        if (lookahead.type == Lexer.WRITE) {
+        if (lookahead == Lexer.WRITE) {
             match(Lexer.WRITE);
             Main.Expr expr = expr();
             match(Lexer.SEMI);
             return new Main.Write(expr);
         }
-        if (lookahead.type == Lexer.IF) {
+        if (lookahead == Lexer.IF) {
             match(Lexer.IF);
             Main.Expr expr = expr();
             Main.Block ifblock = block();
             return new Main.IfStmt(expr, ifblock, null);
         }
-        if (lookahead.type == Lexer.IF_ELSE) {
+        if (lookahead == Lexer.IF_ELSE) {
             match(Lexer.IF_ELSE);
             Main.Expr expr = expr();
             Main.Block ifblock = block();
             Main.Block elseBlock = block();
             return new Main.IfStmt(expr, ifblock, elseBlock);
         }
-        if (lookahead.type == Lexer.WHILE) {
+        if (lookahead == Lexer.WHILE) {
             match(Lexer.WHILE);
             Main.Expr expr = expr();
             Main.Block block = block();
             return new Main.WhileStmt(expr, block);
         }
-        if (lookahead.type == Lexer.LC)
+        if (lookahead == Lexer.CANCEL) {
+            match(Lexer.CANCEL);
+            Main.Expr expr = expr();
+            match(Lexer.SEMI);
+            return new Main.Cancel(expr);
+        }
+        if (lookahead == Lexer.LC)
             return block();
         return new Main.ExprStmt(expr());
     }
@@ -112,29 +144,29 @@ public class Parser {
 
     public Main.Expr or() {
         Main.Expr expr = and();
-        while (lookahead.type == Lexer.OR) {
+        while (lookahead == Lexer.OR) {
             match(Lexer.OR);
             Main.Expr right = and();
-            expr = new Main.BooleanOp(expr, right, Main.Oper.OR);
+            expr = new Main.OrOp(expr, right);
         }
         return expr;
     }
 
     public Main.Expr and() {
         Main.Expr expr = equality();
-        while (lookahead.type == Lexer.AND) {
+        while (lookahead == Lexer.AND) {
             match(Lexer.AND);
             Main.Expr right = equality();
-            expr = new Main.BooleanOp(expr, right, Main.Oper.AND);
+            expr = new Main.AndOp(expr, right);
         }
         return expr;
     }
 
     public Main.Expr equality() {
         Main.Expr expr = comparison();
-        while (lookahead.type == Lexer.EQ || lookahead.type == Lexer.NE) {
+        while (lookahead == Lexer.EQ || lookahead == Lexer.NE) {
             Main.Oper op = Main.Oper.EQ;
-            if (lookahead.type == Lexer.EQ)
+            if (lookahead == Lexer.EQ)
                 match(Lexer.EQ);
             else {
                 op = Main.Oper.NE;
@@ -148,15 +180,15 @@ public class Parser {
 
     public Main.Expr comparison() {
         Main.Expr expr = term();
-        while (lookahead.type == Lexer.GT || lookahead.type == Lexer.GE ||
-                lookahead.type == Lexer.LT || lookahead.type == Lexer.LE) {
+        while (lookahead == Lexer.GT || lookahead == Lexer.GE ||
+                lookahead == Lexer.LT || lookahead == Lexer.LE) {
             Main.Oper op = Main.Oper.GT;
-            if (lookahead.type == Lexer.GT)
+            if (lookahead == Lexer.GT)
                 match(Lexer.GT);
-            else if (lookahead.type == Lexer.GE) {
+            else if (lookahead == Lexer.GE) {
                 op = Main.Oper.GE;
                 match(Lexer.GE);
-            } else if (lookahead.type == Lexer.LT) {
+            } else if (lookahead == Lexer.LT) {
                 op = Main.Oper.LT;
                 match(Lexer.LT);
             } else {
@@ -171,9 +203,9 @@ public class Parser {
 
     public Main.Expr term() {
         Main.Expr expr = factor();
-        while (lookahead.type == Lexer.SUB || lookahead.type == Lexer.ADD) {
+        while (lookahead == Lexer.SUB || lookahead == Lexer.ADD) {
             Main.Oper op = Main.Oper.ADD;
-            if (lookahead.type == Lexer.ADD)
+            if (lookahead == Lexer.ADD)
                 match(Lexer.ADD);
             else {
                 op = Main.Oper.SUB;
@@ -187,9 +219,9 @@ public class Parser {
 
     public Main.Expr factor() {
         Main.Expr expr = unary();
-        while (lookahead.type == Lexer.MUL || lookahead.type == Lexer.DIV) {
+        while (lookahead == Lexer.MUL || lookahead == Lexer.DIV) {
             Main.Oper op = Main.Oper.MUL;
-            if (lookahead.type == Lexer.MUL)
+            if (lookahead == Lexer.MUL)
                 match(Lexer.MUL);
             else {
                 op = Main.Oper.DIV;
@@ -202,8 +234,8 @@ public class Parser {
     }
 
     public Main.Expr unary() {
-        if (lookahead.type == Lexer.NOT || lookahead.type == Lexer.SUB) {
-            final int op = lookahead.type;
+        if (lookahead == Lexer.NOT || lookahead == Lexer.SUB) {
+            final int op = lookahead;
             if (op == Lexer.NOT)
                 match(Lexer.NOT);
             else
@@ -218,17 +250,38 @@ public class Parser {
     }
 
     public Main.Expr call() {
-        if (lookahead.type == Lexer.LAMBDA) {
+        if (lookahead == Lexer.LAMBDA) {
             match(Lexer.LAMBDA);
-            Main.Identifier variable = new Main.Identifier(lookahead.text);
+            Main.Identifier variable = identifier();
             match(Lexer.IDENT);
             return new Main.Lambda(variable, block());
         }
-        if (lookahead.type == Lexer.READ) {
+        if (lookahead == Lexer.PARSUM) {
+            match(Lexer.PARSUM);
+            Main.Identifier variable = identifier();
+            match(Lexer.IDENT);
+            match(Lexer.FROM);
+            Main.Expr from = expr();
+            match(Lexer.TO);
+            Main.Expr to = expr();
+            return new Main.ParSum(variable, from, to, block());
+        }
+        if (lookahead == Lexer.READ) {
             match(Lexer.READ);
             return new Main.Read();
         }
-        if (lookahead.type == Lexer.RETURN) {
+        if (lookahead == Lexer.SPAWN) {
+            match(Lexer.SPAWN);
+            Main.Expr expr = call();
+            if (!(expr instanceof Main.Call))
+                throw new Error("expecting a call after spawn");
+            return new Main.Spawn((Main.Call) expr);
+        }
+        if (lookahead == Lexer.AWAIT) {
+            match(Lexer.AWAIT);
+            return new Main.Await(unary());
+        }
+        if (lookahead == Lexer.RETURN) {
             match(Lexer.RETURN);
             match(Lexer.ASN);
             Main.Expr expr = expr();
@@ -236,7 +289,7 @@ public class Parser {
             return new Main.ReturnExpr(expr);
         }
         Main.Expr expr = primary();
-        if (lookahead.type == Lexer.FUNARG) {
+        if (lookahead == Lexer.FUNARG) {
             match(Lexer.FUNARG);
             Main.Expr arg = expr();
             return new Main.Call(expr, arg);
@@ -245,16 +298,16 @@ public class Parser {
     }
 
     public Main.Expr primary() {
-        if (lookahead.type == Lexer.IDENT) {
-            Main.Identifier variable = new Main.Identifier(lookahead.text);
+        if (lookahead == Lexer.IDENT) {
+            Main.Identifier variable = identifier();
             match(Lexer.IDENT);
             return variable;
-        } else if (lookahead.type == Lexer.NUMBER) {
-            Main.Number number = new Main.Number(Integer.parseInt(lookahead.text));
+        } else if (lookahead == Lexer.NUMBER) {
+            Main.Number number = new Main.Number(tokens.number(0));
             match(Lexer.NUMBER);
             return number;
-        } else if (lookahead.type == Lexer.BOOL) {
-            Main.BoolExpr bool = new Main.BoolExpr(Boolean.parseBoolean(lookahead.text));
+        } else if (lookahead == Lexer.BOOL) {
+            Main.BoolExpr bool = new Main.BoolExpr(tokens.symbol(0) == Symbols.TRUE);
             match(Lexer.BOOL);
             return bool;
         }
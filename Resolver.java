@@ -0,0 +1,253 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// the resolver is a static pass that runs between Parser.init() and
+// exec(). It gives every local variable a (depth, slot) coordinate, so
+// that execution can read and write the plain Value[] frame of the running
+// lambda instead of hashing the name in the SymbolTable.
+//
+// Lambdas see the bindings of their *caller* (dynamic scoping), so a name
+// can only be resolved when it is declared in the same lambda (or the same
+// top-level statement) that uses it; its depth is therefore always 0.
+// Globals, names declared in an enclosing lambda, and locals that a nested
+// lambda refers to stay unresolved and keep using the SymbolTable. So do
+// the locals of a scope in which a call is made, parameters included,
+// since the callee may read them: only names that are dead whenever a
+// call runs can live in a slot. Either way the uses of a local are marked
+// as such, for Memo.
+//
+// The body of a parsum is a scope of the unit it is in, but its runs go
+// to workers with their own copies of the frame and the table, so what it
+// assigns to must be declared inside it. Assignments to anything else,
+// in the body or in a lambda declared there, are reported as errors.
+public final class Resolver {
+    // a unit owns one frame: it is either a lambda body or a top-level statement.
+    private static final class Unit {
+        private final Main.Lambda lambda;
+        private final List<Decl> decls = new ArrayList<>();
+        private int slots = 0;
+
+        private Unit(Main.Lambda lambda) {
+            this.lambda = lambda;
+        }
+    }
+
+    // one declaration of a variable, with every identifier that refers to
+    // it. It lives in the table if a nested lambda refers to it or a call
+    // can run while it is live.
+    private static final class Decl {
+        private final Unit unit;
+        private final List<Main.Identifier> uses = new ArrayList<>();
+        private boolean inTable = false;
+
+        private Decl(Unit unit) {
+            this.unit = unit;
+        }
+    }
+
+    // one lexical scope; the global scope is not represented at all.
+    private static final class Scope {
+        private final Unit unit;
+        private final Map<String, Decl> decls = new HashMap<>();
+        // whether a call is made in the scope, or in one nested in it
+        // within the same unit
+        private boolean calls = false;
+
+        private Scope(Unit unit) {
+            this.unit = unit;
+        }
+    }
+
+    private final List<Unit> units = new ArrayList<>();
+    private final List<Scope> scopes = new ArrayList<>();
+    // the blocks with a name that lives in the table
+    private final Set<Main.Block> keepNames = new HashSet<>();
+    private Unit unit;
+    // the index of the scope of the innermost parsum body, or -1
+    private int parSum = -1;
+    private final List<String> errors;
+
+    private Resolver(List<String> errors) {
+        this.errors = errors;
+    }
+
+    // resolves the given top-level statement and returns the number of
+    // slots its frame needs. What cannot be allowed is added to errors.
+    public static int resolve(Main.Stmt stmt, List<String> errors) {
+        final Resolver resolver = new Resolver(errors);
+        final Unit top = resolver.enterUnit(null);
+        if (stmt != null)
+            resolver.resolveStmt(stmt);
+        resolver.assignSlots();
+        return top.slots;
+    }
+
+    private Unit enterUnit(Main.Lambda lambda) {
+        unit = new Unit(lambda);
+        units.add(unit);
+        return unit;
+    }
+
+    private void resolveStmt(Main.Stmt stmt) {
+        // walk the sequence in a loop; only nesting recurses
+        for (; stmt != null; stmt = stmt.getNext()) {
+            if (stmt instanceof Main.Block) {
+                final Main.Block block = (Main.Block) stmt;
+                scopes.add(new Scope(unit));
+                resolveStmt(block.getBody());
+                if (closeScope())
+                    keepNames.add(block);
+            } else if (stmt instanceof Main.AutoStmt) {
+                final Main.AutoStmt auto = (Main.AutoStmt) stmt;
+                resolveExpr(auto.getRhs());
+                auto.setRedeclared(declare(auto.getLhs()));
+            } else if (stmt instanceof Main.AssignStmt) {
+                final Main.AssignStmt assign = (Main.AssignStmt) stmt;
+                resolveExpr(assign.getRhs());
+                if (parSum >= 0 && scopeOf(assign.getLhs()) < parSum)
+                    errors.add("ERROR: the body of a parsum cannot assign to `"
+                            + assign.getLhs().getValue() + "`, which is declared outside it");
+                use(assign.getLhs());
+            } else {
+                // the last child of a statement is the next one, which is
+                // handled by the loop, after this statement's own scope is closed.
+                final List<Main.AST> children = stmt.getChildren();
+                for (int i = 0; i < children.size() - 1; i++)
+                    resolveNode(children.get(i));
+            }
+        }
+    }
+
+    private void resolveNode(Main.AST node) {
+        if (node instanceof Main.Stmt)
+            resolveStmt((Main.Stmt) node);
+        else if (node instanceof Main.Expr)
+            resolveExpr((Main.Expr) node);
+    }
+
+    private void resolveExpr(Main.Expr expr) {
+        if (expr instanceof Main.Call)
+            callMade();
+        if (expr instanceof Main.Identifier) {
+            use((Main.Identifier) expr);
+        } else if (expr instanceof Main.Lambda) {
+            final Main.Lambda lambda = (Main.Lambda) expr;
+            final Unit outer = unit;
+            final Unit inner = enterUnit(lambda);
+            scopes.add(new Scope(inner));
+            declare(lambda.getParam());
+            if (lambda.getBody() != null) {
+                resolveStmt(lambda.getBody());
+                markTailCalls(lambda.getBody());
+            }
+            closeScope();
+            unit = outer;
+        } else if (expr instanceof Main.ParSum) {
+            final Main.ParSum sum = (Main.ParSum) expr;
+            resolveExpr(sum.getFrom());
+            resolveExpr(sum.getTo());
+            final int outer = parSum;
+            parSum = scopes.size();
+            scopes.add(new Scope(unit));
+            declare(sum.getVariable());
+            resolveStmt(sum.getBody());
+            closeScope();
+            parSum = outer;
+        } else {
+            expr.getChildren().forEach(this::resolveNode);
+        }
+    }
+
+    // notes that the scopes of the running unit have a call made in them.
+    private void callMade() {
+        for (int i = scopes.size() - 1; i >= 0 && scopes.get(i).unit == unit; i--)
+            scopes.get(i).calls = true;
+    }
+
+    // leaves the innermost scope. Its names stay in the table if a call
+    // made in it could look them up. Returns true if any of them does.
+    private boolean closeScope() {
+        final Scope scope = scopes.remove(scopes.size() - 1);
+        if (scope.calls)
+            scope.decls.values().forEach(decl -> decl.inTable = true);
+        return scope.decls.values().stream().anyMatch(decl -> decl.inTable);
+    }
+
+    // marks the `ret := f@x` statements that are the last thing a lambda
+    // body runs, so that Call.invoke() can make those calls in its place.
+    // The scope of a block is closed before invoke() makes the call, so a
+    // call inside a block whose names live in the table is left alone:
+    // the callee may look them up.
+    private void markTailCalls(Main.Stmt stmt) {
+        // find the last statement of the sequence
+        while (stmt != null && stmt.getNext() != null && !(stmt.getNext() instanceof Main.NullStmt))
+            stmt = stmt.getNext();
+        if (stmt instanceof Main.Block) {
+            if (!keepNames.contains(stmt))
+                markTailCalls(((Main.Block) stmt).getBody());
+        } else if (stmt instanceof Main.IfStmt) {
+            markTailCalls(((Main.IfStmt) stmt).getIfBlock());
+            markTailCalls(((Main.IfStmt) stmt).getElseBlock());
+        } else if (stmt instanceof Main.ExprStmt) {
+            final Main.Expr expr = ((Main.ExprStmt) stmt).getValue();
+            if (expr instanceof Main.ReturnExpr && ((Main.ReturnExpr) expr).getValue() instanceof Main.Call)
+                ((Main.ReturnExpr) expr).setTailCall(true);
+        }
+    }
+
+    // declares the identifier in the innermost scope. Returns true if the
+    // name was already declared in that very scope.
+    private boolean declare(Main.Identifier id) {
+        if (scopes.isEmpty())
+            return false; // a global
+        final Scope scope = scopes.get(scopes.size() - 1);
+        Decl decl = scope.decls.get(id.getValue());
+        final boolean redeclared = decl != null;
+        if (!redeclared) {
+            decl = new Decl(scope.unit);
+            scope.decls.put(id.getValue(), decl);
+            scope.unit.decls.add(decl);
+        }
+        decl.uses.add(id);
+        return redeclared;
+    }
+
+    // the index of the scope the name is declared in, or -1 for a global
+    private int scopeOf(Main.Identifier id) {
+        for (int i = scopes.size() - 1; i >= 0; i--)
+            if (scopes.get(i).decls.containsKey(id.getValue()))
+                return i;
+        return -1;
+    }
+
+    private void use(Main.Identifier id) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            final Decl decl = scopes.get(i).decls.get(id.getValue());
+            if (decl == null)
+                continue;
+            if (decl.unit == unit)
+                decl.uses.add(id);
+            else
+                decl.inTable = true;
+            return;
+        }
+    }
+
+    private void assignSlots() {
+        for (Unit u : units) {
+            for (Decl decl : u.decls) {
+                decl.uses.forEach(Main.Identifier::markLocal);
+                if (decl.inTable)
+                    continue;
+                final int slot = u.slots++;
+                decl.uses.forEach(id -> id.resolve(0, slot));
+            }
+            if (u.lambda != null)
+                u.lambda.setFrameSize(u.slots);
+        }
+    }
+}
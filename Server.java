@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+
+// the REPL as a server: it listens on a localhost TCP port or on a Unix
+// domain socket, and every connection gets a session of its own, that is
+// a Context of the one Engine running on a virtual thread. Sessions share
+// the JVM, so the interpreter is compiled by HotSpot once for all of them,
+// and the engine's prelude (`--prelude <file>`), which every session
+// starts out with without copying it, but nothing else: each has its own
+// names (see Symbols), variables, memo statistics and settings, which go
+// away with it, and a session that rebinds a name of the prelude changes
+// only its own copy. (Lambdas the Jit
+// compiles still belong to the session that declared them, as the tree
+// does.)
+//
+// The protocol is line based, like the REPL. The client sends one
+// statement or REPL command per line. The server answers each with the
+// lines it printed, each starting with "out ", the errors it reported,
+// each starting with "err ", and then a line that is "ok", or "error" if
+// the statement failed. A read in a statement takes the next line the
+// client sends, before any answer. "quit", or the end of the input, ends
+// the session.
+//
+// LoadClient drives many sessions at once and reports how the server
+// keeps up.
+public final class Server {
+    // how many connections may wait to be accepted
+    private static final int BACKLOG = 4096;
+    // the buffers of each session are small, since there may be thousands
+    private static final int BUFFER = 1 << 12;
+
+    private static final byte[] OUT = "out ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ERR = "err ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OK = "ok\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ERROR = "error\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final Engine engine;
+    private long sessions = 0;
+
+    public Server(Engine engine) {
+        this.engine = engine;
+    }
+
+    // the address given as `unix:<path>` for a Unix domain socket, or as a
+    // port on the loopback interface (0 picks a free one).
+    public static SocketAddress address(String spec) {
+        if (spec.startsWith("unix:"))
+            return UnixDomainSocketAddress.of(spec.substring(5));
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(spec));
+    }
+
+    // accepts connections until the process is stopped.
+    public void serve(SocketAddress address) throws IOException {
+        final boolean unix = address instanceof UnixDomainSocketAddress;
+        if (unix)
+            removeStaleSocket(((UnixDomainSocketAddress) address).getPath());
+        try (ServerSocketChannel server = unix
+                ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                : ServerSocketChannel.open()) {
+            server.bind(address, BACKLOG);
+            System.err.println("listening on " + server.getLocalAddress());
+            while (true) {
+                final SocketChannel channel = server.accept();
+                Thread.ofVirtual().name("session-" + sessions++).start(() -> session(channel));
+            }
+        }
+    }
+
+    // removes the socket an earlier server left behind at the path, which
+    // would be in the way. Anything else there, a socket some server still
+    // listens on included, is left alone, and the server does not start.
+    private static void removeStaleSocket(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+            return;
+        final int mode;
+        try {
+            mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException e) {
+            throw new IOException(path + " exists");
+        }
+        // the file type bits of a socket
+        if ((mode & 0170000) != 0140000)
+            throw new IOException(path + " exists and is not a socket");
+        if (isListening(path))
+            throw new IOException("a server is listening on " + path);
+        Files.delete(path);
+    }
+
+    private static boolean isListening(Path path) {
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            return channel.connect(UnixDomainSocketAddress.of(path));
+        } catch (IOException e) {
+            // refused: nobody accepts on it any more
+            return false;
+        }
+    }
+
+    // ===-----------------------------------------------------------------===
+    // sessions
+
+    private void session(SocketChannel channel) {
+        try (channel) {
+            final Framed framedOut = new Framed(channel, OUT);
+            final Framed framedErr = new Framed(channel, ERR);
+            final Output out = new Output(framedOut, BUFFER);
+            final Output err = new Output(framedErr, BUFFER);
+            final Context cx = engine.newContext(new Input(channel, BUFFER), out, err);
+            cx.table.openSessionScope();
+            while (true) {
+                cx.error = false;
+                final String line = cx.in.readLine();
+                if (line == null || "quit".equals(line)) break;
+                try {
+                    if (!Main.command(cx, line))
+                        run(cx, line);
+                } catch (RuntimeException e) {
+                    // a bug before the statement ran; it fails, not the session
+                    cx.printError("ERROR: internal error: " + e);
+                    cx.error = true;
+                }
+                out.flush();
+                err.flush();
+                framedOut.endLine();
+                framedErr.endLine();
+                write(channel, cx.error ? ERROR : OK);
+            }
+        } catch (IOException e) {
+            // the client went away; so does its session
+        }
+    }
+
+    // parses and runs one line. Unlike the REPL, a line that does not
+    // parse is reported and the session goes on.
+    private static void run(Context cx, String line) {
+        final Main.Stmt stmt;
+        try {
+            stmt = new Parser(new Lexer(line, cx.symbols)).init();
+        } catch (Error e) {
+            cx.printError("ERROR: " + e.getMessage());
+            cx.error = true;
+            return;
+        }
+        if (stmt != null)
+            cx.run(cx.optimize(stmt));
+    }
+
+    private static void write(SocketChannel channel, byte[] bytes) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    // the channel an Output of a session writes to. It starts every line
+    // with a tag, so that the client can tell what is output, what is an
+    // error and what is the end of an answer.
+    private static final class Framed implements WritableByteChannel {
+        private final SocketChannel channel;
+        private final byte[] tag;
+        private final ByteBuffer framed = ByteBuffer.allocate(1 << 10);
+        private boolean lineStart = true;
+
+        Framed(SocketChannel channel, byte[] tag) {
+            this.channel = channel;
+            this.tag = tag;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            final int n = src.remaining();
+            while (src.hasRemaining()) {
+                if (framed.remaining() <= tag.length)
+                    drain();
+                if (lineStart) {
+                    framed.put(tag);
+                    lineStart = false;
+                }
+                final byte b = src.get();
+                framed.put(b);
+                lineStart = b == '\n';
+            }
+            drain();
+            return n;
+        }
+
+        // ends a line that was left open, before the status line.
+        void endLine() throws IOException {
+            if (lineStart) return;
+            framed.put((byte) '\n');
+            lineStart = true;
+            drain();
+        }
+
+        private void drain() throws IOException {
+            framed.flip();
+            while (framed.hasRemaining())
+                channel.write(framed);
+            framed.clear();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
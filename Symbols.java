@@ -0,0 +1,147 @@
+import java.util.Arrays;
+
+// an interner that gives every distinct name a dense int id, the symbol.
+// The Lexer interns names straight from its input, so a name that was
+// seen before costs no String, and everything downstream compares and
+// indexes by symbol instead of hashing strings. The keywords are interned
+// first, so their symbols are the indexes into Lexer.KEYWORDS.
+//
+// Every Engine has one, which holds the keywords and the names of its
+// prelude, and every Context has one of its own on top of it (see
+// Engine.newContext): it knows the names the engine's had when the
+// context was made, under the same symbols, and numbers the names the
+// context brings after those. So the names a session sends die with the
+// session, and the symbol tables of a context are only as big as the
+// names it uses. Forked contexts share the interner of the one that
+// forked them, since they run its trees.
+//
+// Names live in an open-addressing hash table holding symbol + 1 (0 is an
+// empty slot), probed linearly. A context's interner is used by its forks
+// on other threads, so the methods that touch the table are synchronized.
+public final class Symbols {
+    // the symbols of the boolean literals, the first two keywords
+    public static final int TRUE = 0;
+    public static final int FALSE = 1;
+
+    // the interner whose names below `base` this one shares, or null
+    private final Symbols parent;
+    private final int base;
+
+    private String[] names = new String[256];
+    private int[] hashes = new int[256];
+    private int count = 0;
+    private int[] table = new int[512];
+
+    // an interner that knows the keywords and nothing else.
+    public Symbols() {
+        this.parent = null;
+        this.base = 0;
+        for (String keyword : Lexer.KEYWORDS)
+            intern(keyword);
+    }
+
+    // an interner that knows the names the given one knows now, under the
+    // same symbols, and numbers its own after them.
+    public Symbols(Symbols parent) {
+        this.parent = parent;
+        this.base = parent.count();
+        this.count = base;
+        this.names = new String[16];
+        this.hashes = new int[16];
+        this.table = new int[32];
+    }
+
+    // returns the symbol of the name between two offsets of the input.
+    public synchronized int intern(CharSequence input, int start, int end) {
+        final int hash = hash(input, start, end);
+        if (parent != null) {
+            final int symbol = parent.find(input, start, end, hash);
+            if (symbol >= 0 && symbol < base)
+                return symbol;
+        }
+        final int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while (table[slot] != 0) {
+            final int symbol = table[slot] - 1;
+            if (hashes[symbol - base] == hash && equal(names[symbol - base], input, start, end))
+                return symbol;
+            slot = (slot + 1) & mask;
+        }
+        return add(input.subSequence(start, end).toString(), hash, slot);
+    }
+
+    public int intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    public synchronized String name(int symbol) {
+        return symbol < base ? parent.name(symbol) : names[symbol - base];
+    }
+
+    // the number of symbols so far; every symbol is below it.
+    public synchronized int count() {
+        return count;
+    }
+
+    // the symbol of the name, or -1 if it has none yet.
+    private synchronized int find(CharSequence input, int start, int end, int hash) {
+        if (parent != null) {
+            final int symbol = parent.find(input, start, end, hash);
+            if (symbol >= 0 && symbol < base)
+                return symbol;
+        }
+        final int mask = table.length - 1;
+        for (int slot = mix(hash) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            final int symbol = table[slot] - 1;
+            if (hashes[symbol - base] == hash && equal(names[symbol - base], input, start, end))
+                return symbol;
+        }
+        return -1;
+    }
+
+    private static int hash(CharSequence input, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + input.charAt(i);
+        return hash;
+    }
+
+    private static boolean equal(String name, CharSequence input, int start, int end) {
+        if (name.length() != end - start) return false;
+        for (int i = 0; i < name.length(); i++)
+            if (name.charAt(i) != input.charAt(start + i)) return false;
+        return true;
+    }
+
+    private int add(String name, int hash, int slot) {
+        final int own = count - base;
+        if (own == names.length) {
+            names = Arrays.copyOf(names, own * 2);
+            hashes = Arrays.copyOf(hashes, own * 2);
+        }
+        final int symbol = count++;
+        names[own] = name;
+        hashes[own] = hash;
+        table[slot] = symbol + 1;
+        // keep the table at most half full
+        if ((own + 1) * 2 > table.length)
+            rehash();
+        return symbol;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        final int mask = table.length - 1;
+        for (int symbol = base; symbol < count; symbol++) {
+            int slot = mix(hashes[symbol - base]) & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = symbol + 1;
+        }
+    }
+
+    // spreads the high bits of String-style hashes over the low ones
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
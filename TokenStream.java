@@ -0,0 +1,72 @@
+// the tokens of a Lexer, pulled one at a time as the Parser asks for
+// them. A small ring buffer holds the current token and the ones the
+// Parser has peeked at; each is just a type, two offsets into the input
+// and the symbol of a name, so no Token or String is made per token.
+public final class TokenStream {
+    // must be a power of two larger than the farthest peek
+    private static final int SIZE = 4;
+    private static final int MASK = SIZE - 1;
+
+    private final Lexer lexer;
+    private final int[] types = new int[SIZE];
+    private final int[] starts = new int[SIZE];
+    private final int[] ends = new int[SIZE];
+    private final int[] symbols = new int[SIZE];
+    // the slot of the current token, and how many tokens are buffered
+    private int head = 0;
+    private int count = 0;
+
+    public TokenStream(Lexer lexer) {
+        this.lexer = lexer;
+    }
+
+    // makes sure the token k positions ahead is buffered, and returns its slot
+    private int fill(int k) {
+        while (count <= k) {
+            final int slot = (head + count) & MASK;
+            types[slot] = lexer.next();
+            starts[slot] = lexer.getStart();
+            ends[slot] = lexer.getEnd();
+            symbols[slot] = lexer.getSymbol();
+            count++;
+        }
+        return (head + k) & MASK;
+    }
+
+    // the type of the token k positions ahead; 0 is the current token
+    public int type(int k) {
+        return types[fill(k)];
+    }
+
+    public String text(int k) {
+        final int slot = fill(k);
+        if (types[slot] == Lexer.EOF_TYPE) return "<EOF>";
+        return lexer.text(starts[slot], ends[slot]);
+    }
+
+    // the symbol of a name token
+    public int symbol(int k) {
+        return symbols[fill(k)];
+    }
+
+    // the name of a name token
+    public String name(int k) {
+        return lexer.getSymbols().name(symbol(k));
+    }
+
+    public int number(int k) {
+        final int slot = fill(k);
+        return lexer.number(starts[slot], ends[slot]);
+    }
+
+    public void consume() {
+        fill(0);
+        head = (head + 1) & MASK;
+        count--;
+    }
+
+    // the current token, as Token.toString() would print it
+    public String describe() {
+        return "<'" + text(0) + "'," + Lexer.getTokenName(type(0)) + ">";
+    }
+}
@@ -0,0 +1,351 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// the type checker is a static pass that runs after the Resolver and
+// before exec(). It infers which kinds of Value every expression can give,
+// reports the operations that can never get the kind they need, and
+// lowers the nodes whose types it proves to their typed variants: an
+// arithmetic or comparison node on numbers becomes its Int node at once,
+// and a read of a slot that only ever holds numbers (or booleans) becomes
+// a NumFrameRead (or BoolFrameRead).
+//
+// A type is the set of kinds an expression can give while no error is
+// flagged, as bits. Sets only grow, so inference repeats until nothing
+// changes. A frame slot has the types its own unit stores in it. A name
+// in the symbol table has the types of every store to that name anywhere,
+// since with dynamic scoping any of them may be what a use sees; that is
+// only known when the whole program is, so the REPL takes such names to
+// be of any type. For the same reason, a lambda parameter is of any type
+// unless the whole program is known and the lambda is bound to one name
+// that is only ever called; then it has the types of the arguments.
+public final class TypeChecker {
+    private static final int NUM = 1;
+    private static final int BOOL = 2;
+    private static final int FUN = 4;
+    private static final int UNSET = 8;
+    private static final int TASK = 16;
+    private static final int ANY = NUM | BOOL | FUN | UNSET | TASK;
+    private static final int[] NO_SLOTS = new int[0];
+
+    private final boolean wholeProgram;
+    // the types of the names in the symbol table, by symbol
+    private final int[] globals;
+    // the types of the slots of every lambda's frame, and of the running unit
+    private final Map<Main.Lambda, int[]> frames = new IdentityHashMap<>();
+    private int[] slots;
+    // the lambdas known to be called only by name, by symbol, and the
+    // types of the arguments they are called with
+    private final Main.Lambda[] functions;
+    private final Map<Main.Lambda, Integer> arguments = new IdentityHashMap<>();
+    private boolean changed;
+    // set for the last walk, which reports errors and lowers nodes
+    private boolean reporting;
+    private final List<String> errors = new ArrayList<>();
+    private String where = "";
+
+    private TypeChecker(boolean wholeProgram, int symbols) {
+        this.wholeProgram = wholeProgram;
+        this.globals = new int[wholeProgram ? symbols : 0];
+        this.functions = new Main.Lambda[wholeProgram ? symbols : 0];
+    }
+
+    // checks resolved top-level statements, given the frame size of each,
+    // and returns the errors found. With wholeProgram, the statements are
+    // all the code there will be, as with a script. Their names are
+    // symbols of the given interner.
+    public static List<String> check(List<Main.Stmt> program, int[] frameSizes, boolean wholeProgram,
+                                     Symbols symbols) {
+        final TypeChecker checker = new TypeChecker(wholeProgram, symbols.count());
+        final int[][] units = new int[program.size()][];
+        for (int i = 0; i < units.length; i++)
+            units[i] = frameSizes[i] == 0 ? NO_SLOTS : new int[frameSizes[i]];
+        if (wholeProgram)
+            checker.findFunctions(program);
+        do {
+            checker.changed = false;
+            for (int i = 0; i < units.length; i++) {
+                checker.slots = units[i];
+                checker.stmt(program.get(i));
+            }
+        } while (checker.changed);
+        checker.reporting = true;
+        for (int i = 0; i < units.length; i++) {
+            if (wholeProgram)
+                checker.where = " (statement " + (i + 1) + ")";
+            checker.slots = units[i];
+            checker.stmt(program.get(i));
+        }
+        return checker.errors;
+    }
+
+    // ===-----------------------------------------------------------------===
+    // statements
+
+    private void stmt(Main.Stmt stmt) {
+        // walk the sequence in a loop; only nesting recurses
+        for (; stmt != null; stmt = stmt.getNext()) {
+            if (stmt instanceof Main.Block) {
+                stmt(((Main.Block) stmt).getBody());
+            } else if (stmt instanceof Main.IfStmt) {
+                final Main.IfStmt ifStmt = (Main.IfStmt) stmt;
+                need(BOOL, expr(ifStmt.getCondition()), "the condition of `if`");
+                stmt(ifStmt.getIfBlock());
+                stmt(ifStmt.getElseBlock());
+            } else if (stmt instanceof Main.WhileStmt) {
+                final Main.WhileStmt whileStmt = (Main.WhileStmt) stmt;
+                need(BOOL, expr(whileStmt.getCondition()), "the condition of `while`");
+                stmt(whileStmt.getBody());
+            } else if (stmt instanceof Main.AutoStmt) {
+                final Main.AutoStmt auto = (Main.AutoStmt) stmt;
+                final int type = expr(auto.getRhs());
+                if (!auto.isRedeclared())
+                    store(auto.getLhs(), type);
+            } else if (stmt instanceof Main.AssignStmt) {
+                final Main.AssignStmt assign = (Main.AssignStmt) stmt;
+                store(assign.getLhs(), expr(assign.getRhs()));
+            } else if (stmt instanceof Main.Write) {
+                expr(((Main.Write) stmt).getValue());
+            } else if (stmt instanceof Main.ExprStmt) {
+                expr(((Main.ExprStmt) stmt).getValue());
+            } else if (stmt instanceof Main.Cancel) {
+                need(TASK, expr(((Main.Cancel) stmt).getTask()), "`cancel`");
+            }
+        }
+    }
+
+    private void store(Main.Identifier id, int type) {
+        if (id.isResolved())
+            slots[id.getSlot()] = join(slots[id.getSlot()], type);
+        else if (wholeProgram)
+            globals[id.getSymbol()] = join(globals[id.getSymbol()], type);
+    }
+
+    private int join(int old, int type) {
+        if ((old | type) != old)
+            changed = true;
+        return old | type;
+    }
+
+    // ===-----------------------------------------------------------------===
+    // expressions; each returns its type
+
+    private int expr(Main.Expr expr) {
+        if (expr instanceof Main.Number)
+            return NUM;
+        if (expr instanceof Main.BoolExpr)
+            return BOOL;
+        if (expr instanceof Main.Read)
+            return NUM | UNSET;
+        if (expr instanceof Main.Identifier)
+            return read((Main.Identifier) expr);
+        if (expr instanceof Main.ArithmeticOp) {
+            final Main.ArithmeticOp op = (Main.ArithmeticOp) expr;
+            final int left = expr(op.getLeft());
+            final int right = expr(op.getRight());
+            need(NUM, left, "`" + symbol(op.getOp()) + "`");
+            need(NUM, right, "`" + symbol(op.getOp()) + "`");
+            if (reporting && left == NUM && right == NUM && op.getClass() == Main.ArithmeticOp.class)
+                op.replace(op.specialized());
+            return NUM;
+        }
+        if (expr instanceof Main.ComparisonOp) {
+            final Main.ComparisonOp op = (Main.ComparisonOp) expr;
+            final int left = expr(op.getLeft());
+            final int right = expr(op.getRight());
+            need(NUM, left, "`" + symbol(op.getOp()) + "`");
+            need(NUM, right, "`" + symbol(op.getOp()) + "`");
+            if (reporting && left == NUM && right == NUM && op.getClass() == Main.ComparisonOp.class)
+                op.replace(op.specialized());
+            return BOOL;
+        }
+        if (expr instanceof Main.BooleanOp) {
+            final Main.BooleanOp op = (Main.BooleanOp) expr;
+            need(BOOL, expr(op.getLeft()), "`" + symbol(op.getOp()) + "`");
+            need(BOOL, expr(op.getRight()), "`" + symbol(op.getOp()) + "`");
+            return BOOL;
+        }
+        if (expr instanceof Main.NegationOp) {
+            need(NUM, expr(((Main.NegationOp) expr).getRight()), "`-`");
+            return NUM;
+        }
+        if (expr instanceof Main.NotOp) {
+            need(BOOL, expr(((Main.NotOp) expr).getRight()), "`not`");
+            return BOOL;
+        }
+        if (expr instanceof Main.Lambda) {
+            lambda((Main.Lambda) expr);
+            return FUN;
+        }
+        if (expr instanceof Main.Call) {
+            final Main.Call call = (Main.Call) expr;
+            expr(call.getFunExpr());
+            final int arg = expr(call.getArg());
+            final Main.Lambda callee = callee(call.getFunExpr());
+            if (callee != null)
+                arguments.put(callee, join(arguments.get(callee), arg));
+            // whatever the lambda returns, or nothing
+            return ANY;
+        }
+        if (expr instanceof Main.ReturnExpr) {
+            expr(((Main.ReturnExpr) expr).getValue());
+            return UNSET;
+        }
+        if (expr instanceof Main.Spawn) {
+            expr(((Main.Spawn) expr).getCall());
+            return TASK;
+        }
+        if (expr instanceof Main.Await) {
+            need(TASK, expr(((Main.Await) expr).getTask()), "`await`");
+            // whatever the lambda returns, or nothing
+            return ANY;
+        }
+        if (expr instanceof Main.ParSum) {
+            final Main.ParSum sum = (Main.ParSum) expr;
+            need(NUM, expr(sum.getFrom()), "the start of `parsum`");
+            need(NUM, expr(sum.getTo()), "the end of `parsum`");
+            store(sum.getVariable(), NUM);
+            stmt(sum.getBody());
+            return NUM;
+        }
+        return ANY;
+    }
+
+    private int read(Main.Identifier id) {
+        if (!id.isResolved())
+            return wholeProgram ? globals[id.getSymbol()] : ANY;
+        final int type = slots[id.getSlot()];
+        if (reporting && id.getClass() == Main.Identifier.class) {
+            if (type == NUM)
+                id.replace(new Main.NumFrameRead(id));
+            else if (type == BOOL)
+                id.replace(new Main.BoolFrameRead(id));
+        }
+        return type;
+    }
+
+    private void lambda(Main.Lambda lambda) {
+        final int[] outer = slots;
+        slots = frames.computeIfAbsent(lambda,
+                l -> l.getFrameSize() == 0 ? NO_SLOTS : new int[l.getFrameSize()]);
+        final Integer argument = arguments.get(lambda);
+        store(lambda.getParam(), argument != null ? argument : ANY);
+        stmt(lambda.getBody());
+        slots = outer;
+    }
+
+    // the lambda a call is known to call, if any
+    private Main.Lambda callee(Main.Expr funExpr) {
+        if (!wholeProgram || !(funExpr instanceof Main.Identifier))
+            return null;
+        final Main.Identifier id = (Main.Identifier) funExpr;
+        return id.isResolved() ? null : functions[id.getSymbol()];
+    }
+
+    // reports an operand that can never be of the wanted type. An operand
+    // with no type at all never gets a value, for lack of a binding.
+    private void need(int wanted, int type, String what) {
+        if (reporting && type != 0 && (type & wanted) == 0)
+            errors.add("ERROR: " + what + " needs " + describe(wanted) + ", but gets " + describe(type) + where);
+    }
+
+    private static String describe(int type) {
+        final List<String> kinds = new ArrayList<>();
+        if ((type & NUM) != 0) kinds.add("a number");
+        if ((type & BOOL) != 0) kinds.add("a boolean");
+        if ((type & FUN) != 0) kinds.add("a lambda");
+        if ((type & UNSET) != 0) kinds.add("an unset value");
+        if ((type & TASK) != 0) kinds.add("a task");
+        return String.join(" or ", kinds);
+    }
+
+    private static String symbol(Main.Oper op) {
+        return switch (op) {
+            case ADD -> "+";
+            case SUB -> "-";
+            case MUL -> "*";
+            case DIV -> "/";
+            case LT -> "<";
+            case LE -> "<=";
+            case GT -> ">";
+            case GE -> ">=";
+            case EQ -> "=";
+            case NE -> "!=";
+            case AND -> "and";
+            case OR -> "or";
+            case NOT -> "not";
+        };
+    }
+
+    // ===-----------------------------------------------------------------===
+    // functions: names with exactly one store in the symbol table, of a
+    // lambda, that are read only to be called
+
+    private int[] stores;
+    private Main.Lambda[] lambdas;
+    private boolean[] escapes;
+
+    private void findFunctions(List<Main.Stmt> program) {
+        stores = new int[functions.length];
+        lambdas = new Main.Lambda[functions.length];
+        escapes = new boolean[functions.length];
+        for (Main.Stmt stmt : program)
+            scan(stmt);
+        for (int symbol = 0; symbol < functions.length; symbol++) {
+            if (stores[symbol] == 1 && lambdas[symbol] != null && !escapes[symbol]) {
+                functions[symbol] = lambdas[symbol];
+                arguments.put(lambdas[symbol], 0);
+            }
+        }
+        stores = null;
+        lambdas = null;
+        escapes = null;
+    }
+
+    private void scan(Main.AST node) {
+        if (node instanceof Main.Stmt) {
+            // walk the sequence in a loop; only nesting recurses
+            for (Main.Stmt stmt = (Main.Stmt) node; stmt != null; stmt = stmt.getNext()) {
+                if (stmt instanceof Main.AutoStmt) {
+                    final Main.AutoStmt auto = (Main.AutoStmt) stmt;
+                    scanStore(auto.getLhs(), auto.getRhs());
+                    scan(auto.getRhs());
+                } else if (stmt instanceof Main.AssignStmt) {
+                    final Main.AssignStmt assign = (Main.AssignStmt) stmt;
+                    scanStore(assign.getLhs(), null);
+                    scan(assign.getRhs());
+                } else {
+                    // the last child is the next statement
+                    final List<Main.AST> children = stmt.getChildren();
+                    for (int i = 0; i < children.size() - 1; i++)
+                        scan(children.get(i));
+                }
+            }
+        } else if (node instanceof Main.Identifier) {
+            final Main.Identifier id = (Main.Identifier) node;
+            if (!id.isResolved())
+                escapes[id.getSymbol()] = true;
+        } else if (node instanceof Main.Call) {
+            final Main.Call call = (Main.Call) node;
+            if (!(call.getFunExpr() instanceof Main.Identifier))
+                scan(call.getFunExpr());
+            scan(call.getArg());
+        } else if (node instanceof Main.Lambda) {
+            final Main.Lambda lambda = (Main.Lambda) node;
+            scanStore(lambda.getParam(), null);
+            scan(lambda.getBody());
+        } else if (node != null) {
+            for (Main.AST child : node.getChildren())
+                scan(child);
+        }
+    }
+
+    private void scanStore(Main.Identifier id, Main.Expr rhs) {
+        if (id.isResolved()) return;
+        final int symbol = id.getSymbol();
+        stores[symbol]++;
+        if (rhs instanceof Main.Lambda)
+            lambdas[symbol] = (Main.Lambda) rhs;
+    }
+}
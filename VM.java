@@ -0,0 +1,312 @@
+// the VM is an alternative execution tier to the tree walker. Programs are
+// compiled by the BytecodeCompiler into a Chunk: a compact int[] of
+// register instructions plus a constant pool, which run() executes in a
+// single switch-dispatch loop.
+//
+// Every instruction is an opcode followed by its operands. Operands are
+// register numbers unless noted otherwise; `k` operands index the pool
+// and `t` operands are absolute jump targets. The register file of a
+// chunk is laid out as [ frame slots | temporaries | constants ], so the
+// locals the Resolver gave a slot are registers, and constants are loaded
+// once on entry instead of once per use.
+public final class VM {
+    public static final int MOVE = 0;      // d s       : d := s
+    public static final int LOADG = 1;     // d y       : d := lookup(symbol y)
+    public static final int BIND = 2;      // y s       : bind(symbol y, s)
+    public static final int REBIND = 3;    // y s       : rebind(symbol y, s)
+    public static final int REDECL = 4;    // y         : report symbol y as already bound
+    public static final int ADD = 5;       // d a b     : d := a + b
+    public static final int SUB = 6;       // d a b
+    public static final int MUL = 7;       // d a b
+    public static final int DIV = 8;       // d a b
+    public static final int NEG = 9;       // d a       : d := -a
+    public static final int LT = 10;       // d a b     : d := a < b
+    public static final int LE = 11;       // d a b
+    public static final int GT = 12;       // d a b
+    public static final int GE = 13;       // d a b
+    public static final int EQ = 14;       // d a b
+    public static final int NE = 15;       // d a b
+    public static final int AND = 16;      // d a b
+    public static final int OR = 17;       // d a b
+    public static final int NOT = 18;      // d a
+    public static final int JMP = 19;      // t
+    public static final int JF = 20;       // s t       : jump if s is false
+    public static final int OPEN = 21;     //           : open a scope
+    public static final int CLOSE = 22;    //           : close a scope
+    public static final int WRITE = 23;    // s
+    public static final int READ = 24;     // d
+    public static final int LAMBDA = 25;   // d k       : d := the lambda pool[k]
+    public static final int CALL = 26;     // d f a     : d := f @ a
+    public static final int RET = 27;      // s         : ret := s
+    public static final int INFO = 28;     // y s       : report the assignment of s to symbol y
+    public static final int EVAL = 29;     // d k       : d := pool[k].eval(), by the tree walker
+    public static final int EXEC = 30;     // k         : pool[k].execute(), by the tree walker
+    public static final int HALT = 31;
+    // superinstructions for the most common shapes
+    public static final int INCK = 32;     // r n       : r := r + n, for `x := x + 1`
+    public static final int JNLT = 33;     // a b t     : jump unless a < b, for `while i < k`
+    public static final int JNLE = 34;     // a b t
+    public static final int JNGT = 35;     // a b t
+    public static final int JNGE = 36;     // a b t
+    public static final int JNEQ = 37;     // a b t
+    public static final int JNNE = 38;     // a b t
+    public static final int TAILCALL = 39; // f a       : ret := f @ a, made by the caller
+
+    // ===-----------------------------------------------------------------===
+    // a compiled unit of code: a lambda body or a top-level statement.
+    public static final class Chunk {
+        final int[] code;
+        final Object[] pool;
+        final Main.Value[] constants;
+        final int constantBase;
+        final int registers;
+
+        Chunk(int[] code, Object[] pool, Main.Value[] constants, int constantBase) {
+            this.code = code;
+            this.pool = pool;
+            this.constants = constants;
+            this.constantBase = constantBase;
+            this.registers = constantBase + constants.length;
+        }
+
+        Main.Value[] newRegisters() {
+            return load(new Main.Value[registers]);
+        }
+
+        // puts the constants into a register file with room for them.
+        Main.Value[] load(Main.Value[] regs) {
+            System.arraycopy(constants, 0, regs, constantBase, constants.length);
+            return regs;
+        }
+    }
+
+    private VM() { }
+
+    // compiles and runs a resolved top-level statement.
+    public static void run(Context cx, Main.Stmt stmt, int frameSize) {
+        final Chunk chunk = BytecodeCompiler.compile(stmt, frameSize);
+        execute(cx, chunk, chunk.newRegisters());
+    }
+
+    // runs the body of a lambda for Main.Call.invoke(), which takes care
+    // of the call stack, tail calls, the return value and a parameter that
+    // is not in a slot. The registers are the call's activation record.
+    static void call(Context cx, Main.Lambda lambda, Main.Value arg) {
+        final Chunk chunk = lambda.getChunk();
+        final Main.Value[] regs = chunk.load(cx.callStack.record(chunk.registers));
+        final Main.Identifier param = lambda.getParam();
+        if (param.isResolved())
+            regs[param.getSlot()] = arg;
+        execute(cx, chunk, regs);
+    }
+
+    // runs the chunk until it halts. The register file doubles as the
+    // frame, so nodes that fall back to the tree walker (EVAL and EXEC)
+    // see the same locals. Unlike the tree walker, the VM stops the
+    // current statement at the first error.
+    private static void execute(Context cx, Chunk chunk, Main.Value[] regs) {
+        final int[] code = chunk.code;
+        final Object[] pool = chunk.pool;
+        final Main.Value[] callerFrame = cx.frame;
+        cx.frame = regs;
+        int scopes = 0;
+        int pc = 0;
+        loop:
+        while (true) {
+            switch (code[pc]) {
+                case MOVE:
+                    regs[code[pc + 1]] = regs[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case LOADG:
+                    regs[code[pc + 1]] = cx.table.lookup(code[pc + 2]);
+                    if (cx.error) break loop;
+                    pc += 3;
+                    break;
+                case BIND:
+                    cx.table.bind(code[pc + 1], regs[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case REBIND:
+                    cx.table.rebind(code[pc + 1], regs[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case REDECL:
+                    cx.out.println("ERROR: Variable " + cx.symbols.name(code[pc + 1]) + " already bound!");
+                    pc += 2;
+                    break;
+                case ADD:
+                    regs[code[pc + 1]] = Main.Value.of(regs[code[pc + 2]].getNumber() + regs[code[pc + 3]].getNumber());
+                    pc += 4;
+                    break;
+                case SUB:
+                    regs[code[pc + 1]] = Main.Value.of(regs[code[pc + 2]].getNumber() - regs[code[pc + 3]].getNumber());
+                    pc += 4;
+                    break;
+                case MUL:
+                    regs[code[pc + 1]] = Main.Value.of(regs[code[pc + 2]].getNumber() * regs[code[pc + 3]].getNumber());
+                    pc += 4;
+                    break;
+                case DIV: {
+                    final int r = regs[code[pc + 3]].getNumber();
+                    if (r == 0) {
+                        cx.printError("ERROR: Division by zero!");
+                        cx.error = true;
+                        break loop;
+                    }
+                    regs[code[pc + 1]] = Main.Value.of(regs[code[pc + 2]].getNumber() / r);
+                    pc += 4;
+                    break;
+                }
+                case NEG:
+                    regs[code[pc + 1]] = Main.Value.of(-1 * regs[code[pc + 2]].getNumber());
+                    pc += 3;
+                    break;
+                case LT:
+                    regs[code[pc + 1]] = Main.Value.of(regs[code[pc + 2]].getNumber() < regs[code[pc + 3]].getNumber());
+                    pc += 4;
+                    break;
+                case LE:
+                    regs[code[pc + 1]] = Main.Value.of(regs[code[pc + 2]].getNumber() <= regs[code[pc + 3]].getNumber());
+                    pc += 4;
+                    break;
+                case GT:
+                    regs[code[pc + 1]] = Main.Value.of(regs[code[pc + 2]].getNumber() > regs[code[pc + 3]].getNumber());
+                    pc += 4;
+                    break;
+                case GE:
+                    regs[code[pc + 1]] = Main.Value.of(regs[code[pc + 2]].getNumber() >= regs[code[pc + 3]].getNumber());
+                    pc += 4;
+                    break;
+                case EQ:
+                    regs[code[pc + 1]] = Main.Value.of(regs[code[pc + 2]].getNumber() == regs[code[pc + 3]].getNumber());
+                    pc += 4;
+                    break;
+                case NE:
+                    regs[code[pc + 1]] = Main.Value.of(regs[code[pc + 2]].getNumber() != regs[code[pc + 3]].getNumber());
+                    pc += 4;
+                    break;
+                case AND: {
+                    final boolean l = regs[code[pc + 2]].getBoolean();
+                    final boolean r = regs[code[pc + 3]].getBoolean();
+                    regs[code[pc + 1]] = Main.Value.of(l && r);
+                    pc += 4;
+                    break;
+                }
+                case OR: {
+                    final boolean l = regs[code[pc + 2]].getBoolean();
+                    final boolean r = regs[code[pc + 3]].getBoolean();
+                    regs[code[pc + 1]] = Main.Value.of(l || r);
+                    pc += 4;
+                    break;
+                }
+                case NOT:
+                    regs[code[pc + 1]] = Main.Value.of(!regs[code[pc + 2]].getBoolean());
+                    pc += 3;
+                    break;
+                case JMP:
+                    // a jump back closes a loop, where a cancelled task stops
+                    if (code[pc + 1] < pc)
+                        cx.stopIfCancelled();
+                    pc = code[pc + 1];
+                    break;
+                case JF:
+                    pc = regs[code[pc + 1]].getBoolean() ? pc + 3 : code[pc + 2];
+                    break;
+                case OPEN:
+                    cx.table.openScope();
+                    scopes++;
+                    pc += 1;
+                    break;
+                case CLOSE:
+                    cx.table.closeScope();
+                    scopes--;
+                    pc += 1;
+                    break;
+                case WRITE:
+                    regs[code[pc + 1]].writeTo(cx.out);
+                    pc += 2;
+                    break;
+                case READ:
+                    regs[code[pc + 1]] = Main.Read.readValue(cx);
+                    pc += 2;
+                    break;
+                case LAMBDA:
+                    regs[code[pc + 1]] = ((Main.Lambda) pool[code[pc + 2]]).asValue();
+                    pc += 3;
+                    break;
+                case CALL: {
+                    final Main.Value fn = regs[code[pc + 2]];
+                    if (fn.getType() == Main.Type.FUN_T)
+                        regs[code[pc + 1]] = Main.Call.invoke(cx, fn.getLambda(), regs[code[pc + 3]]);
+                    else
+                        regs[code[pc + 1]] = Main.Value.NONE;
+                    cx.frame = regs;
+                    if (cx.error) break loop;
+                    pc += 4;
+                    break;
+                }
+                case TAILCALL: {
+                    final Main.Value fn = regs[code[pc + 1]];
+                    if (fn.getType() == Main.Type.FUN_T) {
+                        cx.tailArg = regs[code[pc + 2]];
+                        cx.tailLambda = fn.getLambda();
+                    } else {
+                        cx.returnVariables.push(Main.Value.NONE);
+                    }
+                    pc += 3;
+                    break;
+                }
+                case RET:
+                    cx.returnVariables.push(regs[code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case INFO:
+                    if (cx.diagnostics.info)
+                        cx.diagnostics.replacing(code[pc + 1], regs[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case EVAL:
+                    regs[code[pc + 1]] = ((Main.Expr) pool[code[pc + 2]]).eval(cx);
+                    if (cx.error) break loop;
+                    pc += 3;
+                    break;
+                case EXEC:
+                    ((Main.Stmt) pool[code[pc + 1]]).execute(cx);
+                    if (cx.error) break loop;
+                    pc += 2;
+                    break;
+                case HALT:
+                    break loop;
+                case INCK:
+                    regs[code[pc + 1]] = Main.Value.of(regs[code[pc + 1]].getNumber() + code[pc + 2]);
+                    pc += 3;
+                    break;
+                case JNLT:
+                    pc = regs[code[pc + 1]].getNumber() < regs[code[pc + 2]].getNumber() ? pc + 4 : code[pc + 3];
+                    break;
+                case JNLE:
+                    pc = regs[code[pc + 1]].getNumber() <= regs[code[pc + 2]].getNumber() ? pc + 4 : code[pc + 3];
+                    break;
+                case JNGT:
+                    pc = regs[code[pc + 1]].getNumber() > regs[code[pc + 2]].getNumber() ? pc + 4 : code[pc + 3];
+                    break;
+                case JNGE:
+                    pc = regs[code[pc + 1]].getNumber() >= regs[code[pc + 2]].getNumber() ? pc + 4 : code[pc + 3];
+                    break;
+                case JNEQ:
+                    pc = regs[code[pc + 1]].getNumber() == regs[code[pc + 2]].getNumber() ? pc + 4 : code[pc + 3];
+                    break;
+                case JNNE:
+                    pc = regs[code[pc + 1]].getNumber() != regs[code[pc + 2]].getNumber() ? pc + 4 : code[pc + 3];
+                    break;
+                default:
+                    throw new Error("invalid opcode " + code[pc] + " at " + pc);
+            }
+        }
+        // leave the symbol table as balanced as we found it
+        while (scopes-- > 0)
+            cx.table.closeScope();
+        cx.frame = callerFrame;
+    }
+}
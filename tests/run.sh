@@ -0,0 +1,24 @@
+#!/bin/sh
+# runs every tests/*.brn script as a batch under each execution tier (the
+# tree walker, the VM, and the Jit from the first call) and compares what
+# it writes with tests/<name>.out. Needs the javac and java of JDK 21 or
+# later, on the PATH or in JAVA_HOME. Exits with 1 if any output differs.
+dir=$(cd "$(dirname "$0")" && pwd)
+bin=${JAVA_HOME:+$JAVA_HOME/bin/}
+classes=$(mktemp -d)
+trap 'rm -rf "$classes"' EXIT
+"${bin}javac" --release 21 -d "$classes" "$dir"/../*.java || exit 1
+failed=0
+for script in "$dir"/*.brn; do
+    name=$(basename "$script" .brn)
+    for tier in "" --vm --jit-threshold=1; do
+        if ! "${bin}java" -cp "$classes" Main $tier run "$script" 2>&1 \
+                | diff -u "$dir/$name.out" - > "$classes/diff"; then
+            echo "FAIL $name ${tier:-(tree walker)}"
+            cat "$classes/diff"
+            failed=1
+        fi
+    done
+done
+[ $failed = 0 ] && echo "all tests passed"
+exit $failed